@@ -0,0 +1,147 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// EventLog: binary log of packet events with timestamps. Threads append fixed-size records to a
+// preallocated ring buffer, a background thread drains it to the file in large batches, so
+// recording an event neither allocates nor makes a system call. EventLogConverter turns the
+// file back into the text logs (seqnum.log, ack.log, arrival.log).
+public class EventLog implements Runnable {
+    // event types
+    public static final byte Sent = 1;              // data packet or EOT sent for the first time
+    public static final byte Retransmitted = 2;     // data packet or EOT sent again
+    public static final byte ACKReceived = 3;       // ACK received by the sender
+    public static final byte Arrived = 4;           // data packet received by the receiver
+
+    // file header: magic, wall clock time and System.nanoTime() at creation,
+    // then records of type (1 byte), sequence number (4) and nanoTime (8)
+    public static final int Magic = 0x45564c47;     // "EVLG"
+    public static final int HeaderLength = 20;
+    public static final int RecordLength = 13;
+
+    private final int capacity = 1 << 16;           // records, a power of two
+    private final long drainInterval = 100;         // ms the drainer sleeps while the ring is not half full
+
+    private ByteBuffer ring = ByteBuffer.allocateDirect(capacity * RecordLength);
+    private long head = 0;                          // records appended, guarded by this
+    private long tail = 0;                          // records written to the file, guarded by this
+    private boolean closed = false;
+
+    private FileOutputStream fileStream;
+    private FileChannel fileChannel;
+    private Thread drainer;
+
+    public EventLog(String fileName) throws IOException {
+        fileStream = new FileOutputStream(fileName);
+        fileChannel = fileStream.getChannel();
+
+        ByteBuffer header = ByteBuffer.allocate(HeaderLength);
+        header.putInt(Magic);
+        header.putLong(System.currentTimeMillis());
+        header.putLong(System.nanoTime());
+        header.flip();
+        fileChannel.write(header);
+
+        drainer = new Thread(this, "EventLog drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    // append one event, waits only if the drainer has fallen a whole ring behind
+    public synchronized void record(byte type, int seqNum) {
+        if (closed)
+            return;
+
+        while (head - tail == capacity && !closed) {
+            notifyAll();
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+
+        // the drainer failed while this thread waited
+        if (closed)
+            return;
+
+        int index = (int) (head & (capacity - 1)) * RecordLength;
+        ring.put(index, type);
+        ring.putInt(index + 1, seqNum);
+        ring.putLong(index + 5, System.nanoTime());
+        head++;
+
+        if (head - tail == capacity / 2)
+            notifyAll();
+    }
+
+    // drainer thread: write everything between tail and head, then free those slots
+    public void run() {
+        ByteBuffer batch = ring.duplicate();
+
+        try {
+            while (true) {
+                long from, to;
+                boolean last;
+
+                synchronized (this) {
+                    if (head == tail && !closed)
+                        wait(drainInterval);
+
+                    from = tail;
+                    to = head;
+                    last = closed;
+                }
+
+                // the records between from and to are not touched by producers until tail moves
+                while (from < to) {
+                    int start = (int) (from & (capacity - 1));
+                    int count = (int) Math.min(to - from, capacity - start);
+
+                    batch.limit((start + count) * RecordLength);
+                    batch.position(start * RecordLength);
+                    while (batch.hasRemaining())
+                        fileChannel.write(batch);
+
+                    from += count;
+                }
+
+                synchronized (this) {
+                    tail = to;
+                    notifyAll();
+                }
+
+                // nothing is appended once closed, so this batch was the last one
+                if (last)
+                    break;
+            }
+
+        } catch (InterruptedException ex) {
+            System.out.println("EventLog: drainer interrupted");
+        } catch (IOException ex) {
+            System.out.println("EventLog: File I/O error " + ex.getMessage());
+        }
+
+        // nothing is written any more, do not let producers wait for free slots
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    // stop accepting events, write out the rest and close the file
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+
+        try {
+            drainer.join();
+        } catch (InterruptedException ex) {
+        }
+
+        fileStream.close();
+    }
+}
@@ -0,0 +1,24 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// FileSink: where the receiver writes the payloads it delivers in order. Several sinks may
+// write different byte ranges of the same file, the file is emptied once before they start.
+interface FileSink {
+    // called before the first write if the sender announced where its data goes:
+    // the position of its first byte and the size of the whole file
+    void setRange(long offset, long fileLength) throws IOException;
+
+    void write(byte[] data, int offset, int length) throws IOException;
+
+    // write the remaining bytes of payloads[offset] to payloads[offset + length - 1] one after
+    // the other, as a single gathering write where the sink can
+    void write(ByteBuffer[] payloads, int offset, int length) throws IOException;
+
+    // bytes of the file written so far
+    long getBytesWritten();
+
+    // force everything written so far to the disk, before a checkpoint records it
+    void flush() throws IOException;
+
+    void close() throws IOException;
+}
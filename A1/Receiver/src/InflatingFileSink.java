@@ -0,0 +1,128 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// InflatingFileSink: turns the block stream of a compressed transfer back into the file, as
+// described at TransferSetup.Compression. Payloads arrive in order but split blocks anywhere,
+// so a block is collected until it is complete, then written to the sink below inflated or as
+// it is.
+class InflatingFileSink implements FileSink {
+    private final int headerLength = 8;
+    private final int maxBlockSize = 16 * 1024 * 1024;  // larger lengths mean a corrupt stream
+
+    private FileSink sink;
+    private Inflater inflater = new Inflater();
+
+    private byte[] header = new byte[headerLength];
+    private int headerFilled = 0;
+    private int rawLength;
+    private int storedLength;
+    private byte[] storedBlock = new byte[0];
+    private int storedFilled = 0;
+    private byte[] rawBlock = new byte[0];
+
+    public InflatingFileSink(FileSink rawSink) {
+        sink = rawSink;
+    }
+
+    public void setRange(long offset, long fileLength) throws IOException {
+        sink.setRange(offset, fileLength);
+    }
+
+    public void write(byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (headerFilled < headerLength) {
+                int count = Math.min(length, headerLength - headerFilled);
+                System.arraycopy(data, offset, header, headerFilled, count);
+                headerFilled += count;
+                offset += count;
+                length -= count;
+
+                if (headerFilled == headerLength)
+                    startBlock();
+                continue;
+            }
+
+            int count = Math.min(length, storedLength - storedFilled);
+            System.arraycopy(data, offset, storedBlock, storedFilled, count);
+            storedFilled += count;
+            offset += count;
+            length -= count;
+
+            if (storedFilled == storedLength)
+                finishBlock();
+        }
+    }
+
+    // blocks straddle payloads, so they are taken apart one by one
+    public void write(ByteBuffer[] payloads, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            ByteBuffer payload = payloads[i];
+            write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+            payload.position(payload.limit());
+        }
+    }
+
+    private void startBlock() throws IOException {
+        ByteBuffer lengths = ByteBuffer.wrap(header);
+        rawLength = lengths.getInt();
+        storedLength = lengths.getInt();
+
+        if (rawLength <= 0 || rawLength > maxBlockSize || storedLength <= 0 || storedLength > rawLength)
+            throw new IOException("InflatingFileSink: corrupt block header");
+
+        if (storedBlock.length < storedLength)
+            storedBlock = new byte[storedLength];
+        storedFilled = 0;
+    }
+
+    private void finishBlock() throws IOException {
+        headerFilled = 0;
+
+        if (storedLength == rawLength) {
+            sink.write(storedBlock, 0, rawLength);
+            return;
+        }
+
+        if (rawBlock.length < rawLength)
+            rawBlock = new byte[rawLength];
+
+        inflater.reset();
+        inflater.setInput(storedBlock, 0, storedLength);
+
+        try {
+            int inflated = 0;
+            while (inflated < rawLength && !inflater.finished()) {
+                int count = inflater.inflate(rawBlock, inflated, rawLength - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                inflated += count;
+            }
+
+            if (inflated != rawLength || !inflater.finished())
+                throw new IOException("InflatingFileSink: block inflates to " + inflated + " bytes instead of " + rawLength);
+        } catch (DataFormatException ex) {
+            throw new IOException("InflatingFileSink: corrupt block: " + ex.getMessage());
+        }
+
+        sink.write(rawBlock, 0, rawLength);
+    }
+
+    // whole blocks only, a block counts once it is inflated and written
+    public long getBytesWritten() {
+        return sink.getBytesWritten();
+    }
+
+    public void flush() throws IOException {
+        sink.flush();
+    }
+
+    public void close() throws IOException {
+        inflater.end();
+        sink.close();
+
+        if (headerFilled != 0)
+            throw new IOException("InflatingFileSink: transfer ended inside a block");
+    }
+}
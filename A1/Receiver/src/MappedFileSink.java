@@ -0,0 +1,98 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// MappedFileSink: maps the file region by region and copies payloads straight into the
+// mapping, so writing costs no system call per packet. Unless the sender announced the size
+// of the file, it is cut to the bytes actually written when the sink is closed.
+class MappedFileSink implements FileSink {
+    private final long regionSize = 64 * 1024 * 1024;
+
+    private RandomAccessFile file;
+    private FileChannel fileChannel;
+
+    private MappedByteBuffer region;        // mapping of [regionStart, regionStart + region.capacity())
+    private long regionStart = 0;
+    private long position = 0;              // next byte to write
+    private long fileLength = -1;           // -1 until the sender announces it
+    private long bytesWritten = 0;
+
+    public MappedFileSink(File fileToMap) throws IOException {
+        file = new RandomAccessFile(fileToMap, "rw");
+        fileChannel = file.getChannel();
+    }
+
+    // allocate the whole file at once instead of growing it region by region
+    public void setRange(long offset, long length) throws IOException {
+        position = offset;
+        fileLength = length;
+
+        if (fileLength >= 0) {
+            // sinks of the other streams may be growing the same file
+            synchronized (MappedFileSink.class) {
+                if (file.length() < fileLength)
+                    file.setLength(fileLength);
+            }
+        }
+    }
+
+    public void write(byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (region == null || position >= regionStart + region.capacity()) {
+                regionStart = position;
+                long size = (fileLength >= 0)? Math.min(regionSize, fileLength - regionStart) : regionSize;
+                region = fileChannel.map(FileChannel.MapMode.READ_WRITE, regionStart, size);
+            }
+
+            // a payload may straddle two regions
+            int count = (int) Math.min(length, regionStart + region.capacity() - position);
+
+            region.position((int) (position - regionStart));
+            region.put(data, offset, count);
+
+            position += count;
+            offset += count;
+            length -= count;
+            bytesWritten += count;
+        }
+    }
+
+    // payloads are copied into the mapping anyway, one after the other
+    public void write(ByteBuffer[] payloads, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            ByteBuffer payload = payloads[i];
+            write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+            payload.position(payload.limit());
+        }
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public void flush() throws IOException {
+        if (region != null)
+            region.force();
+    }
+
+    public void close() throws IOException {
+        if (region != null)
+            region.force();
+        region = null;
+
+        // mapping whole regions extends the file past its end
+        if (fileLength < 0) {
+            file.setLength(position);
+        } else {
+            // a file kept from an earlier transfer (-resume) may be longer
+            synchronized (MappedFileSink.class) {
+                if (file.length() > fileLength)
+                    file.setLength(fileLength);
+            }
+        }
+        file.close();
+    }
+}
@@ -0,0 +1,40 @@
+// PacketPool: free list of reusable packets (see packet.createReusable), packets that leave
+// the window are given back and filled again instead of allocating one per datagram. All
+// packets of a pool have room for the same payload.
+public class PacketPool {
+    private final int dataLength;
+    private packet[] freePackets = new packet[64];
+    private int freeCount = 0;
+
+    public PacketPool() {
+        this(packet.DefaultDataLength);
+    }
+
+    public PacketPool(int packetDataLength) {
+        dataLength = packetDataLength;
+    }
+
+    public int getDataLength() {
+        return dataLength;
+    }
+
+    public synchronized packet take() {
+        if (freeCount == 0)
+            return packet.createReusable(dataLength);
+
+        packet p = freePackets[--freeCount];
+        freePackets[freeCount] = null;
+        return p;
+    }
+
+    public synchronized void release(packet p) {
+        // grows up to the largest number of packets ever held at once, i.e. the window
+        if (freeCount == freePackets.length) {
+            packet[] grown = new packet[freePackets.length * 2];
+            System.arraycopy(freePackets, 0, grown, 0, freeCount);
+            freePackets = grown;
+        }
+
+        freePackets[freeCount++] = p;
+    }
+}
@@ -0,0 +1,146 @@
+import java.util.Arrays;
+
+// ParityDecoder: rebuilds a lost data packet from the parity packet (type 5) of its group, see
+// the sender's ParityEncoder for the format. Groups are sized by the sender packet by packet, so
+// the decoder keeps the XOR of the payloads and lengths of every aligned run of SubgroupSize
+// sequence numbers, with a bit per packet that arrived. A group of any size is then the XOR of
+// its subgroups. Subgroups live in a ring covering the receive window.
+class ParityDecoder {
+    public static final int HeaderLength = 8;
+    public static final int SubgroupBits = 2;
+    public static final int SubgroupSize = 1 << SubgroupBits;  // smallest group the sender uses
+    public static final int MaxGroupSize = 64;
+
+    private final int payloadSize;
+    private final int slotMask;
+
+    private final boolean[] used;
+    private final int[] subgroupIds;            // sequence number >>> SubgroupBits, wraps with it
+    private final byte[][] payloadXors;
+    private final int[] lengthXors;
+    private final int[] arrived;                // bit i: packet i of the subgroup has arrived
+
+    private long packetsRebuilt = 0;
+
+    public ParityDecoder(int payloadLength, int windowSize) {
+        payloadSize = payloadLength;
+
+        int slots = Integer.highestOneBit((windowSize + 2 * MaxGroupSize) / SubgroupSize);
+        slots <<= 1;
+        slotMask = slots - 1;
+
+        used = new boolean[slots];
+        subgroupIds = new int[slots];
+        payloadXors = new byte[slots][];
+        lengthXors = new int[slots];
+        arrived = new int[slots];
+    }
+
+    // a data packet arrived for the first time, rebuilt ones included
+    public void add(packet p) {
+        int seqNum = p.getSeqNum();
+        int slot = getSlot(seqNum >>> SubgroupBits, true);
+        if (slot < 0)
+            return;
+
+        byte[] data = p.getDataArray();
+        byte[] xor = payloadXors[slot];
+        int length = p.getLength();
+
+        for (int i = 0; i < length; i++)
+            xor[i] ^= data[i];
+
+        lengthXors[slot] ^= length;
+        arrived[slot] |= 1 << (seqNum & (SubgroupSize - 1));
+    }
+
+    // parity packet of a group: if exactly one packet of the group is missing, turn the parity
+    // packet into that packet (type 1, its sequence number, payload and length) and return true
+    public boolean rebuild(packet parity) throws Exception {
+        byte[] data = parity.getDataArray();
+        int groupStart = parity.getSeqNum();
+        int groupSize = getInt(data, 0);
+        int length = getInt(data, 4);
+        int parityLength = parity.getLength() - HeaderLength;
+
+        if (groupSize <= 0 || groupSize > MaxGroupSize || (groupStart & (SubgroupSize - 1)) != 0
+                || parityLength < 0 || parityLength > payloadSize)
+            throw new RuntimeException("receiver: Parity packet corrupted");
+
+        // find the missing packet, every subgroup of the group must still be in the ring
+        int missingSeqNum = 0;
+        int missing = 0;
+
+        for (int seqNum = groupStart; seqNum - (groupStart + groupSize) < 0; seqNum += SubgroupSize) {
+            int slot = getSlot(seqNum >>> SubgroupBits, false);
+            if (slot == -2)
+                return false;
+
+            int bits = (slot < 0)? 0 : arrived[slot];
+
+            for (int i = 0; i < SubgroupSize && seqNum + i - (groupStart + groupSize) < 0; i++) {
+                if ((bits & (1 << i)) == 0) {
+                    missingSeqNum = seqNum + i;
+                    missing++;
+                }
+            }
+        }
+
+        if (missing != 1)
+            return false;
+
+        // what is left of the parity after removing every packet that arrived is the lost one
+        for (int seqNum = groupStart; seqNum - (groupStart + groupSize) < 0; seqNum += SubgroupSize) {
+            int slot = getSlot(seqNum >>> SubgroupBits, false);
+            if (slot < 0)
+                continue;
+
+            byte[] xor = payloadXors[slot];
+            for (int i = 0; i < parityLength; i++)
+                data[HeaderLength + i] ^= xor[i];
+            length ^= lengthXors[slot];
+        }
+
+        if (length <= 0 || length > parityLength)
+            return false;
+
+        System.arraycopy(data, HeaderLength, data, 0, length);
+        parity.set(1, missingSeqNum, length, true);
+        packetsRebuilt++;
+        return true;
+    }
+
+    public long getPacketsRebuilt() {
+        return packetsRebuilt;
+    }
+
+    // slot of the subgroup: -1 if nothing of it has arrived, -2 if the ring has moved past it.
+    // create takes the slot over for a newer subgroup.
+    private int getSlot(int subgroupId, boolean create) {
+        int slot = subgroupId & slotMask;
+
+        if (used[slot] && subgroupIds[slot] == subgroupId)
+            return slot;
+
+        if (used[slot] && ((subgroupId - subgroupIds[slot]) << SubgroupBits) < 0)
+            return -2;
+
+        if (!create)
+            return -1;
+
+        if (payloadXors[slot] == null)
+            payloadXors[slot] = new byte[payloadSize];
+        else
+            Arrays.fill(payloadXors[slot], (byte) 0);
+
+        used[slot] = true;
+        subgroupIds[slot] = subgroupId;
+        lengthXors[slot] = 0;
+        arrived[slot] = 0;
+        return slot;
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        return (data[offset] << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+}
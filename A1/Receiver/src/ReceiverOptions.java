@@ -0,0 +1,159 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+// ReceiverOptions: optional command line arguments of the receiver and the receiver server,
+// given after the required ones as "-name value" pairs
+class ReceiverOptions {
+    boolean selectiveRepeat = false;            // -mode <gbn|sr>
+    boolean wideSeqNumAccepted = true;          // -seqnum <32bit|mod32>
+    int wideWindowSize = 8192;                  // -window <packets>
+    boolean mappedFile = false;                 // -io <stream|mmap>
+    boolean sackAccepted = true;                // -sack <on|off>
+    int ackEvery = 1;                           // -ackevery <packets>
+    long ackDelay = 2;                          // -ackdelay <ms>
+    int maxPayloadSize = packet.MaxDataLength;  // -payload <bytes>
+    boolean compressionAccepted = true;         // -compress <on|off>
+    boolean fecAccepted = true;                 // -fec <on|off>
+    boolean resume = false;                     // -resume <off|on>
+    long checkpointInterval = 8000000;          // -checkpoint <bytes>
+    boolean storageThread = true;               // -storage <thread|inline>
+    long syncInterval = -1;                     // -fsync <off|close|bytes>: -1 off, 0 at the end
+    int streams = 1;                            // -streams <n>, receiver only
+    InetSocketAddress ackAddress = null;        // -ack <host:port>, receiver server only
+
+    static final String usage = "[options]:\n"
+            + "\t-mode <gbn|sr>\tGo-Back-N (default) or Selective Repeat for senders without a SETUP handshake,\n"
+            + "\t\t\tthe mode a sender announces in its SETUP is taken instead\n"
+            + "\t-seqnum <32bit|mod32>\tallow the sender to negotiate 32-bit sequence numbers (default) or not\n"
+            + "\t-window <packets>\tSelective Repeat window offered with 32-bit sequence numbers (default 8192)\n"
+            + "\t-io <stream|mmap>\twrite the file with write calls (default) or memory mapped\n"
+            + "\t-sack <on|off>\tGo-Back-N: allow the sender to negotiate selective acknowledgements (default) or not\n"
+            + "\t-ackevery <packets>\tGo-Back-N: acknowledge every n-th in-order packet, gaps at once (default 1)\n"
+            + "\t-ackdelay <ms>\tlongest time an in-order packet waits for its ACK with -ackevery above 1 (default 2)\n"
+            + "\t-payload <bytes>\tlargest payload the sender may negotiate (default " + packet.MaxDataLength + ")\n"
+            + "\t-compress <on|off>\tallow the sender to negotiate a deflated stream (default) or not\n"
+            + "\t-fec <on|off>\tallow the sender to negotiate parity packets, with 32-bit sequence numbers and\n"
+            + "\t\t\tSelective Repeat or SACK (default) or not\n"
+            + "\t-resume <off|on>\tkeep the output file and a checkpoint of what is on disk, a sender with -resume on\n"
+            + "\t\t\tcontinues an interrupted transfer behind it (default off)\n"
+            + "\t-checkpoint <bytes>\tforce the file to disk and update the checkpoint every n bytes (default 8000000)\n"
+            + "\t-storage <thread|inline>\twrite the file on a thread of its own in batches, so ACKs never wait for\n"
+            + "\t\t\tthe disk (default), or on the thread receiving the packets, always inline in a ReceiverServer\n"
+            + "\t-fsync <off|close|bytes>\tforce the file to disk never but for checkpoints (default), once at the\n"
+            + "\t\t\tend, or every n bytes and at the end\n";
+
+    static final String streamsUsage =
+            "\t-streams <n>\treceive n byte ranges in parallel, stream i uses both UDP ports + i (default 1)";
+
+    static final String ackUsage =
+            "\t-ack <host:port>\tsend all ACKs there, e.g. to a network emulator (default: back to each sender)";
+
+    // name prefixes the error messages: "receiver" or "ReceiverServer"
+    public static ReceiverOptions parse(String[] args, int first, String name) throws RuntimeException, UnknownHostException {
+        ReceiverOptions options = new ReceiverOptions();
+
+        for (int i = first; i < args.length; i++) {
+            if (i + 1 >= args.length)
+                throw new RuntimeException(name + ": Missing value of option " + args[i]);
+
+            String option = args[i];
+            String value = args[++i];
+
+            if (option.equals("-mode")) {
+                if (value.equals("sr"))
+                    options.selectiveRepeat = true;
+                else if (!value.equals("gbn"))
+                    throw new RuntimeException(name + ": Unknown mode " + value);
+            } else if (option.equals("-seqnum")) {
+                if (value.equals(TransferSetup.SeqNumModulo32))
+                    options.wideSeqNumAccepted = false;
+                else if (!value.equals(TransferSetup.SeqNum32Bit))
+                    throw new RuntimeException(name + ": Unknown sequence number format " + value);
+            } else if (option.equals("-window")) {
+                options.wideWindowSize = Integer.parseInt(value);
+
+                if (options.wideWindowSize <= 0)
+                    throw new RuntimeException(name + ": Window must be positive");
+            } else if (option.equals("-io")) {
+                if (value.equals("mmap"))
+                    options.mappedFile = true;
+                else if (!value.equals("stream"))
+                    throw new RuntimeException(name + ": Unknown file I/O " + value);
+            } else if (option.equals("-sack")) {
+                if (value.equals("off"))
+                    options.sackAccepted = false;
+                else if (!value.equals("on"))
+                    throw new RuntimeException(name + ": Unknown SACK setting " + value);
+            } else if (option.equals("-ackevery")) {
+                options.ackEvery = Integer.parseInt(value);
+
+                if (options.ackEvery <= 0)
+                    throw new RuntimeException(name + ": ACK interval must be positive");
+            } else if (option.equals("-ackdelay")) {
+                options.ackDelay = Long.parseLong(value);
+
+                if (options.ackDelay < 0)
+                    throw new RuntimeException(name + ": ACK delay must not be negative");
+            } else if (option.equals("-payload")) {
+                options.maxPayloadSize = Integer.parseInt(value);
+
+                if (options.maxPayloadSize < packet.DefaultDataLength || options.maxPayloadSize > packet.MaxDataLength)
+                    throw new RuntimeException(name + ": Payload must be between " + packet.DefaultDataLength
+                            + " and " + packet.MaxDataLength + " bytes");
+            } else if (option.equals("-compress")) {
+                if (value.equals("off"))
+                    options.compressionAccepted = false;
+                else if (!value.equals("on"))
+                    throw new RuntimeException(name + ": Unknown compression setting " + value);
+            } else if (option.equals("-fec")) {
+                if (value.equals("off"))
+                    options.fecAccepted = false;
+                else if (!value.equals("on"))
+                    throw new RuntimeException(name + ": Unknown FEC setting " + value);
+            } else if (option.equals("-resume")) {
+                if (value.equals("on"))
+                    options.resume = true;
+                else if (!value.equals("off"))
+                    throw new RuntimeException(name + ": Unknown resume setting " + value);
+            } else if (option.equals("-checkpoint")) {
+                options.checkpointInterval = Long.parseLong(value);
+
+                if (options.checkpointInterval <= 0)
+                    throw new RuntimeException(name + ": Checkpoint interval must be positive");
+            } else if (option.equals("-storage")) {
+                if (value.equals("inline"))
+                    options.storageThread = false;
+                else if (!value.equals("thread"))
+                    throw new RuntimeException(name + ": Unknown storage setting " + value);
+            } else if (option.equals("-fsync")) {
+                if (value.equals("off")) {
+                    options.syncInterval = -1;
+                } else if (value.equals("close")) {
+                    options.syncInterval = 0;
+                } else {
+                    options.syncInterval = Long.parseLong(value);
+
+                    if (options.syncInterval <= 0)
+                        throw new RuntimeException(name + ": Sync interval must be positive");
+                }
+            } else if (option.equals("-streams")) {
+                options.streams = Integer.parseInt(value);
+
+                if (options.streams <= 0)
+                    throw new RuntimeException(name + ": Number of streams must be positive");
+            } else if (option.equals("-ack")) {
+                int colon = value.lastIndexOf(':');
+                if (colon < 0)
+                    throw new RuntimeException(name + ": ACK address must be host:port");
+
+                options.ackAddress = new InetSocketAddress(InetAddress.getByName(value.substring(0, colon)),
+                        Integer.parseInt(value.substring(colon + 1)));
+            } else {
+                throw new RuntimeException(name + ": Unknown option " + option);
+            }
+        }
+
+        return options;
+    }
+}
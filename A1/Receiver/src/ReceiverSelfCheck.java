@@ -0,0 +1,255 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+// ReceiverSelfCheck: quick checks of the receiver's own logic that a loopback transfer rarely
+// reaches: rebuilding lost packets from parity, also across the wrap of the sequence numbers,
+// compressed blocks split anywhere between payloads, and checkpoints surviving a restart. Runs
+// without a network, prints one line per group of checks and exits with status 1 at the first
+// failure.
+public class ReceiverSelfCheck {
+    private int checks = 0;
+
+    private void check(boolean condition, String what) {
+        checks++;
+        if (!condition)
+            throw new RuntimeException("ReceiverSelfCheck: failed: " + what);
+    }
+
+    // sink keeping the file in memory
+    private static class MemoryFileSink implements FileSink {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        boolean closed = false;
+
+        public void setRange(long offset, long fileLength) {
+        }
+
+        public void write(byte[] data, int offset, int length) {
+            bytes.write(data, offset, length);
+        }
+
+        public void write(ByteBuffer[] payloads, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                ByteBuffer payload = payloads[i];
+                write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+                payload.position(payload.limit());
+            }
+        }
+
+        public long getBytesWritten() {
+            return bytes.size();
+        }
+
+        public void flush() {
+        }
+
+        public void close() {
+            closed = true;
+        }
+    }
+
+    // data packet seqNum with a payload of length bytes that differs from packet to packet
+    private static packet dataPacket(int seqNum, int length) throws Exception {
+        packet p = packet.createReusable(length);
+        byte[] data = p.getDataArray();
+        for (int i = 0; i < length; i++)
+            data[i] = (byte) (seqNum * 31 + i);
+        p.set(1, seqNum, length, true);
+        return p;
+    }
+
+    // parity packet of a group as the sender's ParityEncoder builds it
+    private static packet parityPacket(packet[] group, int payloadSize) throws Exception {
+        packet parity = packet.createReusable(ParityDecoder.HeaderLength + payloadSize);
+        ByteBuffer data = ByteBuffer.wrap(parity.getDataArray());
+        int maxLength = 0;
+        int lengthXor = 0;
+
+        for (int i = 0; i < group.length; i++) {
+            for (int j = 0; j < group[i].getLength(); j++)
+                data.put(ParityDecoder.HeaderLength + j, (byte) (data.get(ParityDecoder.HeaderLength + j) ^ group[i].getDataArray()[j]));
+            maxLength = Math.max(maxLength, group[i].getLength());
+            lengthXor ^= group[i].getLength();
+        }
+
+        data.putInt(0, group.length);
+        data.putInt(4, lengthXor);
+        parity.set(5, group[0].getSeqNum(), ParityDecoder.HeaderLength + maxLength, true);
+        return parity;
+    }
+
+    private void checkParityRebuild(int groupStart, int groupSize, int lost) throws Exception {
+        int payloadSize = 64;
+        ParityDecoder decoder = new ParityDecoder(payloadSize, 256);
+        packet[] group = new packet[groupSize];
+
+        for (int i = 0; i < groupSize; i++) {
+            group[i] = dataPacket(groupStart + i, payloadSize - (i % 5));
+            if (i != lost)
+                decoder.add(group[i]);
+        }
+
+        packet rebuilt = parityPacket(group, payloadSize);
+        check(decoder.rebuild(rebuilt), "rebuild of " + (groupStart + lost) + " in the group at " + groupStart);
+        check(rebuilt.getType() == 1 && rebuilt.getSeqNum() == groupStart + lost, "header of the rebuilt " + (groupStart + lost));
+        check(rebuilt.getLength() == group[lost].getLength()
+                && Arrays.equals(Arrays.copyOf(rebuilt.getDataArray(), rebuilt.getLength()),
+                        Arrays.copyOf(group[lost].getDataArray(), group[lost].getLength())), "payload of the rebuilt " + (groupStart + lost));
+        check(decoder.getPacketsRebuilt() == 1, "rebuilt count");
+    }
+
+    private void checkParityDecoder() throws Exception {
+        checkParityRebuild(0, 4, 2);
+        checkParityRebuild(64, 64, 63);
+        checkParityRebuild(Integer.MAX_VALUE - 3, 8, 5);        // the group crosses the wrap
+        checkParityRebuild(-16, 16, 0);
+
+        // two packets missing: nothing to rebuild, the parity packet is left alone
+        ParityDecoder decoder = new ParityDecoder(32, 256);
+        packet[] group = new packet[4];
+        for (int i = 0; i < group.length; i++) {
+            group[i] = dataPacket(100 + i, 32);
+            if (i < 2)
+                decoder.add(group[i]);
+        }
+        packet parity = parityPacket(group, 32);
+        check(!decoder.rebuild(parity) && parity.getType() == 5, "group with two losses left as it is");
+
+        System.out.println("ReceiverSelfCheck: parity decoder ok");
+    }
+
+    private static void putBlock(ByteArrayOutputStream stream, byte[] raw, boolean deflate) {
+        byte[] stored = raw;
+
+        if (deflate) {
+            Deflater deflater = new Deflater();
+            deflater.setInput(raw);
+            deflater.finish();
+            byte[] buffer = new byte[raw.length + 64];
+            int length = 0;
+            while (!deflater.finished())
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            deflater.end();
+            stored = Arrays.copyOf(buffer, length);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putInt(raw.length).putInt(stored.length);
+        stream.write(header.array(), 0, 8);
+        stream.write(stored, 0, stored.length);
+    }
+
+    private void checkInflatingFileSink() throws Exception {
+        Random random = new Random(456);
+        byte[] text = new byte[20000];
+        for (int i = 0; i < text.length; i++)
+            text[i] = (byte) ('a' + (i * 7 % 13));
+        byte[] noise = new byte[3000];
+        random.nextBytes(noise);
+
+        ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+        putBlock(blocks, text, true);
+        putBlock(blocks, noise, false);
+        putBlock(blocks, Arrays.copyOf(text, 1), false);
+        byte[] stream = blocks.toByteArray();
+        check(stream.length < text.length, "text block deflated");
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(text, 0, text.length);
+        expected.write(noise, 0, noise.length);
+        expected.write(text, 0, 1);
+
+        // payloads of 1 to 7 bytes split headers and blocks everywhere, then payloads of a few
+        // hundred bytes go through the gathering write
+        int[] maxPayloads = { 7, 700 };
+        for (int m = 0; m < maxPayloads.length; m++) {
+            MemoryFileSink memory = new MemoryFileSink();
+            InflatingFileSink sink = new InflatingFileSink(memory);
+
+            int offset = 0;
+            int payloads = 0;
+            while (offset < stream.length) {
+                int length = Math.min(stream.length - offset, 1 + payloads % maxPayloads[m]);
+                if (m == 0) {
+                    sink.write(stream, offset, length);
+                } else {
+                    ByteBuffer[] pair = { ByteBuffer.wrap(stream, offset, length / 2),
+                            ByteBuffer.wrap(stream, offset + length / 2, length - length / 2) };
+                    sink.write(pair, 0, 2);
+                }
+                offset += length;
+                payloads++;
+            }
+            sink.close();
+
+            check(memory.closed && Arrays.equals(memory.bytes.toByteArray(), expected.toByteArray()),
+                    "inflated file of payloads up to " + maxPayloads[m] + " bytes");
+        }
+
+        // a transfer ending inside a block is an error
+        InflatingFileSink truncated = new InflatingFileSink(new MemoryFileSink());
+        truncated.write(stream, 0, 20);
+        boolean rejected = false;
+        try {
+            truncated.close();
+        } catch (IOException ex) {
+            rejected = true;
+        }
+        check(rejected, "truncated block stream rejected");
+
+        System.out.println("ReceiverSelfCheck: inflating file sink ok");
+    }
+
+    private void checkTransferCheckpoint() throws Exception {
+        File outputFile = File.createTempFile("ReceiverSelfCheck", ".out");
+        outputFile.deleteOnExit();
+
+        try {
+            TransferCheckpoint checkpoint = new TransferCheckpoint(outputFile, 4096, 5000000000L);
+            check(checkpoint.load() == 0, "no checkpoint yet");
+
+            checkpoint.save(123456789L);
+            checkpoint.save(3000000000L);
+            check(new TransferCheckpoint(outputFile, 4096, 5000000000L).load() == 3000000000L, "checkpoint after a restart");
+
+            // another range or file size is a different transfer
+            check(new TransferCheckpoint(outputFile, 0, 5000000000L).load() == 0, "checkpoint of another range");
+            check(new TransferCheckpoint(outputFile, 4096, 5000000001L).load() == 0, "checkpoint of another file size");
+
+            checkpoint.delete();
+            check(checkpoint.load() == 0, "deleted checkpoint");
+
+            // garbage is ignored rather than trusted
+            File file = new File(outputFile.getPath() + ".4096.checkpoint");
+            FileOutputStream garbage = new FileOutputStream(file);
+            garbage.write("filesize;committed=9".getBytes("US-ASCII"));
+            garbage.close();
+            check(checkpoint.load() == 0, "unreadable checkpoint ignored");
+            checkpoint.delete();
+        } finally {
+            outputFile.delete();
+        }
+
+        System.out.println("ReceiverSelfCheck: transfer checkpoint ok");
+    }
+
+    public static void main(String [ ] args) {
+        ReceiverSelfCheck selfCheck = new ReceiverSelfCheck();
+
+        try {
+            selfCheck.checkParityDecoder();
+            selfCheck.checkInflatingFileSink();
+            selfCheck.checkTransferCheckpoint();
+        } catch (Exception ex) {
+            System.out.println(ex.getMessage());
+            System.exit(1);
+        }
+
+        System.out.println("ReceiverSelfCheck: " + selfCheck.checks + " checks passed");
+    }
+}
@@ -0,0 +1,280 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+// ReceiverServer: long running receiver serving many transfers at once on one UDP port. Packets
+// are told apart by the session ID in their header, every session is a receiver writing
+// <directory>/session-<id>. A single thread runs a selector loop for all sessions, so a session
+// costs its state and an open file, not a thread.
+public class ReceiverServer {
+    private final long idleTimeout = 60000;         // ms without a packet before an unfinished session is dropped
+    private final long sweepInterval = 1000;        // ms between checks for idle sessions
+    private final int finishedSessionsKept = 4096;  // finished sessions still answering a resent EOT, with their ACK address
+    private long nextACKDeadline = -1;              // earliest delayed ACK of all sessions, -1 for none
+
+    private DatagramChannel channel;
+    private Selector selector;
+    private ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(packet.MaxDatagramLength);
+    private ByteBuffer sendBuffer = ByteBuffer.allocateDirect(packet.MaxPacketLength);
+    private packet echoPacket = packet.createReusable();
+
+    private File directory;                         // output files of the sessions
+    private ReceiverOptions options;
+
+    // shared by all sessions: they all run on the selector thread
+    private PacketPool packetPool = new PacketPool();
+    private EventLog eventLog;
+
+    private Map<Integer, Session> sessions = new HashMap<Integer, Session>();
+    private Map<Integer, SocketAddress> finishedSessions = new LinkedHashMap<Integer, SocketAddress>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, SocketAddress> eldest) {
+            return size() > finishedSessionsKept;
+        }
+    };
+    // sessions closed after an error, their late packets must not start them over in a truncated file
+    private Set<Integer> failedSessions = Collections.newSetFromMap(new LinkedHashMap<Integer, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+            return size() > finishedSessionsKept;
+        }
+    });
+
+    private static class Session {
+        final receiver transfer;
+        long lastPacketTime;
+
+        Session(receiver transfer) {
+            this.transfer = transfer;
+        }
+    }
+
+    public ReceiverServer(int port, File outputDirectory, ReceiverOptions receiverOptions) throws IOException {
+        directory = outputDirectory;
+        options = receiverOptions;
+        eventLog = new EventLog("server.events");
+
+        channel = DatagramChannel.open();
+        channel.socket().bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    public void serve() throws IOException {
+        long lastSweep = System.currentTimeMillis();
+
+        while (true) {
+            long timeout = sweepInterval;
+            if (nextACKDeadline >= 0)
+                timeout = Math.max(1, Math.min(timeout, nextACKDeadline - System.currentTimeMillis()));
+
+            selector.select(timeout);
+            selector.selectedKeys().clear();
+
+            // drain every datagram that is already queued
+            SocketAddress source;
+            while ((source = channel.receive(receiveBuffer)) != null) {
+                receiveBuffer.flip();
+                handleDatagram(source);
+                receiveBuffer.clear();
+            }
+
+            long now = System.currentTimeMillis();
+            if (nextACKDeadline >= 0 && now - nextACKDeadline >= 0)
+                sendDelayedACKs(now);
+
+            if (now - lastSweep >= sweepInterval) {
+                dropIdleSessions(now);
+                lastSweep = now;
+            }
+        }
+    }
+
+    private void handleDatagram(SocketAddress source) throws IOException {
+        if (receiveBuffer.remaining() < packet.HeaderLength)
+            return;
+
+        int sessionId = packet.peekSessionId(receiveBuffer);
+        Integer key = Integer.valueOf(sessionId);
+
+        try {
+            // the sender did not get the EOT echo and resent its EOT
+            SocketAddress finishedACKAddress = finishedSessions.get(key);
+            if (finishedACKAddress != null) {
+                // late data packets may be larger than the echo packet, only EOT is decoded
+                if (receiveBuffer.getInt(receiveBuffer.position()) == 2)
+                    send(packet.parseUDPdata(receiveBuffer, echoPacket), finishedACKAddress);
+                return;
+            }
+
+            if (failedSessions.contains(key))
+                return;
+
+            Session session = sessions.get(key);
+
+            if (session == null) {
+                File outputFile = new File(directory, "session-" + sessionId);
+
+                // sinks write into the file without truncating it. With -resume a sender giving the
+                // same -session again continues in the file of its interrupted transfer.
+                if (!options.resume) {
+                    RandomAccessFile emptyFile = new RandomAccessFile(outputFile, "rw");
+                    emptyFile.setLength(0);
+                    emptyFile.close();
+                }
+
+                FileSink fileSink = options.mappedFile ? new MappedFileSink(outputFile) : new StreamFileSink(outputFile);
+
+                session = new Session(new receiver(this, sessionId, fileSink, options, eventLog, packetPool));
+                if (options.resume)
+                    session.transfer.keepCheckpoints(outputFile);
+                sessions.put(key, session);
+            }
+
+            session.lastPacketTime = System.currentTimeMillis();
+            session.transfer.setACKAddress(source);
+
+            packet p = packet.parseUDPdata(receiveBuffer, session.transfer.getReceivePacket());
+
+            if (session.transfer.receive(p)) {
+                closeSession(key, true);
+                return;
+            }
+
+            long deadline = session.transfer.getDelayedACKDeadline();
+            if (deadline >= 0 && (nextACKDeadline < 0 || deadline - nextACKDeadline < 0))
+                nextACKDeadline = deadline;
+
+        } catch (Exception ex) {
+            // one broken transfer must not stop the others
+            System.out.println("ReceiverServer: session " + sessionId + ": " + ex.getMessage());
+
+            if (sessions.containsKey(key))
+                closeSession(key, false);
+            failedSessions.add(key);
+        }
+    }
+
+    // send the delayed ACKs that are due and find the next deadline
+    private void sendDelayedACKs(long now) {
+        nextACKDeadline = -1;
+
+        for (Map.Entry<Integer, Session> entry : sessions.entrySet()) {
+            receiver transfer = entry.getValue().transfer;
+
+            try {
+                transfer.sendDelayedACK(now);
+            } catch (Exception ex) {
+                System.out.println("ReceiverServer: session " + entry.getKey() + ": " + ex.getMessage());
+            }
+
+            long deadline = transfer.getDelayedACKDeadline();
+            if (deadline >= 0 && (nextACKDeadline < 0 || deadline - nextACKDeadline < 0))
+                nextACKDeadline = deadline;
+        }
+    }
+
+    // a session that cannot be finished is reported like any other broken transfer
+    private void closeSession(Integer key, boolean finished) {
+        Session session = sessions.remove(key);
+
+        try {
+            session.transfer.finishReceiving();
+        } catch (Exception ex) {
+            System.out.println("ReceiverServer: session " + key + ": " + ex.getMessage());
+            finished = false;
+            failedSessions.add(key);
+        }
+        session.transfer.releaseReceivePacket();
+
+        if (finished)
+            finishedSessions.put(key, session.transfer.getACKAddress());
+    }
+
+    private void dropIdleSessions(long now) {
+        Iterator<Map.Entry<Integer, Session>> it = sessions.entrySet().iterator();
+
+        while (it.hasNext()) {
+            Map.Entry<Integer, Session> entry = it.next();
+
+            if (now - entry.getValue().lastPacketTime < idleTimeout)
+                continue;
+
+            System.out.println("ReceiverServer: session " + entry.getKey() + " idle, dropped");
+            it.remove();
+
+            try {
+                entry.getValue().transfer.finishReceiving();
+            } catch (Exception ex) {
+                System.out.println("ReceiverServer: session " + entry.getKey() + ": " + ex.getMessage());
+            }
+            entry.getValue().transfer.releaseReceivePacket();
+        }
+    }
+
+    // send an encoded datagram for a session, called on the selector thread
+    void send(ByteBuffer datagram, SocketAddress address) throws IOException {
+        channel.send(datagram, address);
+    }
+
+    private void send(packet p, SocketAddress address) throws IOException {
+        sendBuffer.clear();
+        p.encode(sendBuffer);
+        sendBuffer.flip();
+        channel.send(sendBuffer, address);
+    }
+
+    public static void main(String [ ] args) {
+
+        try {
+            // Check if the input format is valid, otherwise print usage description
+            if (args.length < 2) {
+               String str = "Usage:\n"
+                   + "\tjava ReceiverServer | <arguments>\n\n"
+                   + "<arguments>:\n"
+                   + "\t<UDP port number used by the server to receive data from all senders>\n"
+                   + "\t<directory into which the received files session-<id> are written>\n\n"
+                   + ReceiverOptions.usage
+                   + ReceiverOptions.ackUsage;
+               throw new RuntimeException(str);
+            }
+
+            int port = Integer.parseInt(args[0]);
+            File directory = new File(args[1]);
+
+            ReceiverOptions options = ReceiverOptions.parse(args, 2, "ReceiverServer");
+
+            if (options.streams != 1)
+                throw new RuntimeException("ReceiverServer: -streams is an option of receiver");
+
+            if (!directory.isDirectory() || !directory.canWrite())
+                throw new RuntimeException("ReceiverServer: Given directory is not a writable directory");
+
+            new ReceiverServer(port, directory, options).serve();
+
+        } catch (NumberFormatException ex) {
+            System.out.println("ReceiverServer: Can't parse the given port number: " + ex.getMessage());
+        } catch (RuntimeException ex) {
+            System.out.println(ex.getMessage());
+        } catch (SocketException ex) {
+            System.out.println("ReceiverServer: Could not create DatagramChannel (on given port) " + ex.getMessage());
+        } catch (IOException ex) {
+            System.out.println("ReceiverServer: File I/O error " + ex.getMessage());
+        }
+    }
+}
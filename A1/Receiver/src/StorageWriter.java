@@ -0,0 +1,126 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// StorageWriter: the storage thread of a receiver (-storage thread). The network thread hands
+// over the packets it delivers in order through a bounded queue and goes on receiving and
+// acknowledging; the storage thread takes whatever has queued up meanwhile and writes it to the
+// sink in one gathering write, then gives the packets back to their pool. A full queue makes the
+// network thread wait, so a disk slower than the network still throttles the sender.
+class StorageWriter implements Runnable {
+    private final int maxBatch = 64;            // payloads per gathering write
+
+    // called on the storage thread after every write, e.g. to force the file or save a checkpoint
+    interface WriteListener {
+        void onWritten() throws IOException;
+    }
+
+    private final FileSink sink;
+    private final PacketPool pool;
+    private final WriteListener listener;
+    private final BlockingQueue<packet> queue;
+    private final packet endOfQueue = packet.createReusable(0);
+    private final Thread thread;
+
+    private volatile IOException failure;       // first error of the storage thread, reported to the network thread
+    private long writes = 0;
+    private long payloads = 0;
+
+    public StorageWriter(FileSink fileSink, PacketPool packetPool, int queueLength, WriteListener writeListener, String name) {
+        sink = fileSink;
+        pool = packetPool;
+        listener = writeListener;
+        queue = new ArrayBlockingQueue<packet>(queueLength);
+
+        thread = new Thread(this, name + " storage");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // network thread: the packet's payload follows the ones handed over before, the storage
+    // thread releases the packet once it is written
+    public void write(packet p) throws IOException {
+        checkFailure();
+
+        try {
+            queue.put(p);
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("StorageWriter: interrupted while the queue is full");
+        }
+    }
+
+    // network thread: wait until everything handed over is written and stop the storage thread
+    public void close() throws IOException {
+        try {
+            queue.put(endOfQueue);
+            thread.join();
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("StorageWriter: interrupted while draining the queue");
+        }
+
+        checkFailure();
+    }
+
+    // gathering writes and payloads written, read once the writer is closed
+    public long getWrites() {
+        return writes;
+    }
+
+    public long getPayloads() {
+        return payloads;
+    }
+
+    public void run() {
+        packet[] batch = new packet[maxBatch];
+        ByteBuffer[] buffers = new ByteBuffer[maxBatch];
+        boolean finished = false;
+
+        try {
+            while (!finished) {
+                // wait for one payload, then take the ones queued behind it
+                int count = 0;
+                packet p = queue.take();
+
+                while (p != null) {
+                    if (p == endOfQueue) {
+                        finished = true;
+                        break;
+                    }
+
+                    batch[count] = p;
+                    buffers[count] = ByteBuffer.wrap(p.getDataArray(), 0, p.getLength());
+                    if (++count == maxBatch)
+                        break;
+                    p = queue.poll();
+                }
+
+                // after an error the queue is still drained, the network thread must not block on it
+                if (count > 0 && failure == null) {
+                    try {
+                        sink.write(buffers, 0, count);
+                        writes++;
+                        payloads += count;
+                        listener.onWritten();
+                    } catch (IOException ex) {
+                        failure = ex;
+                    }
+                }
+
+                for (int i = 0; i < count; i++) {
+                    pool.release(batch[i]);
+                    batch[i] = null;
+                    buffers[i] = null;
+                }
+            }
+        } catch (InterruptedException ex) {
+            failure = new InterruptedIOException("StorageWriter: storage thread interrupted");
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null)
+            throw new IOException("receiver: Could not write the file: " + failure.getMessage());
+    }
+}
@@ -0,0 +1,59 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// StreamFileSink: writes the file with one write call per payload, or per batch of payloads
+// through the file's channel. A file kept from an earlier transfer (-resume) is cut to the
+// announced size when the sink is closed.
+class StreamFileSink implements FileSink {
+    private RandomAccessFile file;
+    private FileChannel fileChannel;            // shares the file pointer with file
+    private long fileLength = -1;           // -1 until the sender announces it
+    private long bytesWritten = 0;
+
+    public StreamFileSink(File fileToWriteTo) throws IOException {
+        file = new RandomAccessFile(fileToWriteTo, "rw");
+        fileChannel = file.getChannel();
+    }
+
+    public void setRange(long offset, long length) throws IOException {
+        fileLength = length;
+        file.seek(offset);
+    }
+
+    public void write(byte[] data, int offset, int length) throws IOException {
+        file.write(data, offset, length);
+        bytesWritten += length;
+    }
+
+    public void write(ByteBuffer[] payloads, int offset, int length) throws IOException {
+        // a gathering write may stop short, like any write to a channel
+        while (length > 0) {
+            bytesWritten += fileChannel.write(payloads, offset, length);
+
+            while (length > 0 && !payloads[offset].hasRemaining()) {
+                offset++;
+                length--;
+            }
+        }
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public void flush() throws IOException {
+        fileChannel.force(false);
+    }
+
+    public void close() throws IOException {
+        // sinks of the other streams may be writing the same file
+        synchronized (StreamFileSink.class) {
+            if (fileLength >= 0 && file.length() > fileLength)
+                file.setLength(fileLength);
+        }
+        file.close();
+    }
+}
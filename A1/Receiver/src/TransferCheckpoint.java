@@ -0,0 +1,89 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+// TransferCheckpoint: how much of one byte range of the output file is safely on disk, kept in
+// "<file>.<range offset>.checkpoint" next to it (-resume). It is written as the name=value list
+// of a SETUP packet: the file size, the range offset and the committed bytes of the range. The
+// receiver writes in order, so one number says what has arrived. A restarted sender learns it
+// during setup and continues behind it.
+class TransferCheckpoint {
+    public static final String Committed = "committed";
+
+    private final File file;
+    private final File tempFile;                // written first, then renamed over file
+    private final long rangeOffset;
+    private final long fileLength;
+
+    public TransferCheckpoint(File outputFile, long offset, long length) {
+        file = new File(outputFile.getPath() + "." + offset + ".checkpoint");
+        tempFile = new File(outputFile.getPath() + "." + offset + ".checkpoint.tmp");
+        rangeOffset = offset;
+        fileLength = length;
+    }
+
+    // committed bytes of the range, 0 without a checkpoint of the same file size and range
+    public long load() {
+        if (!file.exists())
+            return 0;
+
+        try {
+            byte[] data = new byte[(int) Math.min(file.length(), 1024)];
+            int length = 0;
+
+            FileInputStream stream = new FileInputStream(file);
+            try {
+                while (length < data.length) {
+                    int ret = stream.read(data, length, data.length - length);
+                    if (ret == -1)
+                        break;
+                    length += ret;
+                }
+            } finally {
+                stream.close();
+            }
+
+            TransferSetup checkpoint = TransferSetup.parse(new String(data, 0, length, "US-ASCII").trim());
+
+            if (checkpoint.getLong(TransferSetup.FileSize, -1) != fileLength
+                    || checkpoint.getLong(TransferSetup.RangeOffset, -1) != rangeOffset)
+                return 0;
+
+            return Math.max(0, checkpoint.getLong(Committed, 0));
+
+        } catch (Exception ex) {
+            System.out.println("receiver: Ignoring unreadable checkpoint " + file + ": " + ex.getMessage());
+            return 0;
+        }
+    }
+
+    // record committed bytes of the range, the data must be on disk already. The rename replaces
+    // the old checkpoint at once, a crash leaves one or the other.
+    public void save(long committed) throws IOException {
+        TransferSetup checkpoint = new TransferSetup();
+        checkpoint.set(TransferSetup.FileSize, Long.toString(fileLength));
+        checkpoint.set(TransferSetup.RangeOffset, Long.toString(rangeOffset));
+        checkpoint.set(Committed, Long.toString(committed));
+
+        FileOutputStream stream = new FileOutputStream(tempFile);
+        try {
+            stream.write((checkpoint.toString() + "\n").getBytes("US-ASCII"));
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+
+        if (!tempFile.renameTo(file)) {
+            file.delete();
+            if (!tempFile.renameTo(file))
+                throw new IOException("TransferCheckpoint: could not replace " + file);
+        }
+    }
+
+    // the range is complete, nothing is left to resume
+    public void delete() {
+        file.delete();
+        tempFile.delete();
+    }
+}
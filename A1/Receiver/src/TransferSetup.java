@@ -0,0 +1,116 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// TransferSetup: parameters negotiated in SETUP packets (type 3) before the transfer starts.
+// The sender proposes, the receiver answers with the values it accepts. Both sides use the
+// same class, on the wire it is a list of "name=value" pairs separated by ';'.
+public class TransferSetup {
+    // ARQ mode of the sender: GoBackN or SelectiveRepeat. The receiver takes the sender's mode and
+    // answers with it, a sender finding another mode (or none) in the answer stops.
+    public static final String Mode = "mode";
+    public static final String GoBackN = "gbn";
+    public static final String SelectiveRepeat = "sr";
+
+    // sequence number format: SeqNumModulo32 or SeqNum32Bit
+    public static final String SeqNumFormat = "seqnum";
+    public static final String SeqNumModulo32 = "mod32";
+    public static final String SeqNum32Bit = "32bit";
+
+    // largest number of packets the receiver buffers out of order (Selective Repeat)
+    public static final String ReceiveWindow = "window";
+
+    // size of the file in bytes, lets the receiver allocate it up front
+    public static final String FileSize = "filesize";
+
+    // position in the file of the first byte the transfer carries, 0 unless the file is split into streams
+    public static final String RangeOffset = "offset";
+
+    // UDP port the sender receives ACKs on, lets a ReceiverServer answer many senders on one host
+    public static final String ACKPort = "ackport";
+
+    // Go-Back-N with selective acknowledgements: "on" or "off". The receiver buffers packets above
+    // the gap and answers with SACK packets (type 4), a cumulative ACK plus a bitmap of the
+    // packets it holds after it.
+    public static final String SACK = "sack";
+
+    // largest payload of a data packet in bytes, packet.DefaultDataLength unless negotiated:
+    // the sender proposes, the receiver answers with at most that
+    public static final String PayloadSize = "payload";
+
+    // compression of the data: "deflate" or "off". The payloads then carry a stream of blocks,
+    // each a raw length and a stored length (4 bytes each) followed by the stored bytes, deflated
+    // (zlib format) if they are shorter than the raw length, raw otherwise.
+    public static final String Compression = "compress";
+    public static final String Deflate = "deflate";
+
+    // resuming an interrupted transfer: the sender proposes "on", a receiver keeping checkpoints
+    // answers with the bytes of the range it has on disk already, the sender continues behind them
+    public static final String Resume = "resume";
+
+    // forward error correction: "xor" or "off". Parity packets (type 5) follow every group of data
+    // packets, a receiver rebuilds one lost packet per group from them and tells the sender with a
+    // packet of type 5 naming it. Needs 32-bit sequence numbers and a receiver that buffers
+    // (Selective Repeat or SACK).
+    public static final String FEC = "fec";
+    public static final String XORParity = "xor";
+
+    private Map<String, String> parameters = new LinkedHashMap<String, String>();
+
+    public String get(String name) {
+        return parameters.get(name);
+    }
+
+    public String get(String name, String defaultValue) {
+        String value = parameters.get(name);
+        return (value != null)? value : defaultValue;
+    }
+
+    public int getInt(String name, int defaultValue) {
+        String value = parameters.get(name);
+        return (value != null)? Integer.parseInt(value) : defaultValue;
+    }
+
+    public long getLong(String name, long defaultValue) {
+        String value = parameters.get(name);
+        return (value != null)? Long.parseLong(value) : defaultValue;
+    }
+
+    public void set(String name, String value) {
+        parameters.put(name, value);
+    }
+
+    public void set(String name, int value) {
+        parameters.put(name, Integer.toString(value));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            if (str.length() > 0)
+                str.append(';');
+            str.append(parameter.getKey()).append('=').append(parameter.getValue());
+        }
+
+        return str.toString();
+    }
+
+    public static TransferSetup parse(String str) throws Exception {
+        TransferSetup setup = new TransferSetup();
+
+        if (str.length() == 0)
+            return setup;
+
+        for (String parameter : str.split(";")) {
+            int separator = parameter.indexOf('=');
+
+            if (separator <= 0)
+                throw new Exception("malformed setup parameter: " + parameter);
+
+            setup.parameters.put(parameter.substring(0, separator), parameter.substring(separator + 1));
+        }
+
+        return setup;
+    }
+}
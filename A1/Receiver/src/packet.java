@@ -5,38 +5,95 @@ import java.nio.ByteBuffer;
 public class packet {
 	
 	// constants
-	private final int maxDataLength = 500;
-	private final int SeqNumModulo = 32;
+	private static final int SeqNumModulo = 32;
+	private static final byte[] noData = new byte[0];
+	
+	public static final int HeaderLength = 16;		// type, seqnum, length and session, 4 bytes each
+	public static final int MaxPacketLength = 512;		// packets of the assignment, used unless a larger payload is negotiated
+	public static final int DefaultDataLength = MaxPacketLength - HeaderLength;
+	public static final int MaxDatagramLength = 65507;	// largest UDP payload over IPv4
+	public static final int MaxDataLength = MaxDatagramLength - HeaderLength;
 	
 	// data members
 	private int type;
 	private int seqnum;
-	private String data;
+	private byte[] data;		// payload, valid up to length
+	private int length;
+	private int session;		// transfer the packet belongs to on a multi-session receiver, 0 for none
 	
 	//////////////////////// CONSTRUCTORS //////////////////////////////////////////
 	
 	// hidden constructor to prevent creation of invalid packets
-	private packet(int Type, int SeqNum, String strData) throws Exception {
+	// wideSeqNum: keep all 32 bits of the sequence number instead of reducing it modulo 32
+	private packet(int Type, int SeqNum, byte[] Data, int Length, boolean wideSeqNum) throws Exception {
 		// if data seqment larger than allowed, then throw exception
-		if (strData.length() > maxDataLength)
-			throw new Exception("data too large (max 500 chars)");
+		if (Length > MaxDataLength || Length > Data.length)
+			throw new Exception("data too large (max " + MaxDataLength + " bytes)");
 			
 		type = Type;
-		seqnum = SeqNum % SeqNumModulo;
-		data = strData;
+		seqnum = wideSeqNum ? SeqNum : SeqNum % SeqNumModulo;
+		data = Data;
+		length = Length;
 	}
 	
 	// special packet constructors to be used in place of hidden constructor
 	public static packet createACK(int SeqNum) throws Exception {
-		return new packet(0, SeqNum, new String());
+		return createACK(SeqNum, false);
+	}
+	
+	public static packet createACK(int SeqNum, boolean wideSeqNum) throws Exception {
+		return new packet(0, SeqNum, noData, 0, wideSeqNum);
 	}
 	
 	public static packet createPacket(int SeqNum, String data) throws Exception {
-		return new packet(1, SeqNum, data);
+		byte[] bytes = data.getBytes();
+		return createPacket(SeqNum, bytes, bytes.length, false);
+	}
+	
+	// the packet keeps Data as its payload, it is not copied
+	public static packet createPacket(int SeqNum, byte[] Data, int Length, boolean wideSeqNum) throws Exception {
+		return new packet(1, SeqNum, Data, Length, wideSeqNum);
 	}
 	
 	public static packet createEOT(int SeqNum) throws Exception {
-		return new packet(2, SeqNum, new String());
+		return createEOT(SeqNum, false);
+	}
+	
+	public static packet createEOT(int SeqNum, boolean wideSeqNum) throws Exception {
+		return new packet(2, SeqNum, noData, 0, wideSeqNum);
+	}
+	
+	// SETUP packets negotiate the transfer parameters before the first data packet,
+	// the data is the text form of a TransferSetup
+	public static packet createSetup(TransferSetup setup) throws Exception {
+		byte[] bytes = setup.toString().getBytes("US-ASCII");
+		return new packet(3, 0, bytes, bytes.length, false);
+	}
+	
+	// empty packet with room for the default payload, to be filled by set() or
+	// parseUDPdata(ByteBuffer, packet) again and again instead of allocating new packets
+	public static packet createReusable() {
+		return createReusable(DefaultDataLength);
+	}
+	
+	// empty packet with room for a negotiated payload of DataLength bytes
+	public static packet createReusable(int DataLength) {
+		packet p = new packet();
+		p.data = new byte[DataLength];
+		return p;
+	}
+	
+	private packet() {
+	}
+	
+	// turn a reusable packet into another packet, the payload is the first Length bytes of getDataArray()
+	public void set(int Type, int SeqNum, int Length, boolean wideSeqNum) throws Exception {
+		if (Length > data.length)
+			throw new Exception("data too large (max " + data.length + " bytes)");
+		
+		type = Type;
+		seqnum = wideSeqNum ? SeqNum : SeqNum % SeqNumModulo;
+		length = Length;
 	}
 	
 	///////////////////////// PACKET DATA //////////////////////////////////////////
@@ -50,31 +107,88 @@ public class packet {
 	}
 	
 	public int getLength() {
-		return data.length();
+		return length;
+	}
+	
+	public int getSessionId() {
+		return session;
+	}
+	
+	// kept by set(), so a reusable packet stays in its session
+	public void setSessionId(int SessionId) {
+		session = SessionId;
 	}
 	
+	// copy of the payload
 	public byte[] getData() {
-		return data.getBytes();
+		byte[] copy = new byte[length];
+		System.arraycopy(data, 0, copy, 0, length);
+		return copy;
+	}
+	
+	// the payload itself without copying, valid up to getLength()
+	public byte[] getDataArray() {
+		return data;
+	}
+	
+	// bytes the packet takes in a datagram: header and payload, nothing else
+	public int getEncodedLength() {
+		return HeaderLength + length;
 	}
 	
 	//////////////////////////// UDP HELPERS ///////////////////////////////////////
 	
 	public byte[] getUDPdata() {
-		ByteBuffer buffer = ByteBuffer.allocate(512);
-		buffer.putInt(type);
-        buffer.putInt(seqnum);
-        buffer.putInt(data.length());
-        buffer.put(data.getBytes(),0,data.length());
+		ByteBuffer buffer = ByteBuffer.allocate(getEncodedLength());
+		encode(buffer);
 		return buffer.array();
 	}
 	
+	// write header and payload at the buffer's position, heap and direct buffers alike
+	public void encode(ByteBuffer buffer) {
+		buffer.putInt(type);
+		buffer.putInt(seqnum);
+		buffer.putInt(length);
+		buffer.putInt(session);
+		buffer.put(data, 0, length);
+	}
+	
+	// session of the packet at the buffer's position, without decoding it
+	public static int peekSessionId(ByteBuffer buffer) {
+		return buffer.getInt(buffer.position() + 12);
+	}
+	
 	public static packet parseUDPdata(byte[] UDPdata) throws Exception {
-		ByteBuffer buffer = ByteBuffer.wrap(UDPdata);
+		return parseUDPdata(ByteBuffer.wrap(UDPdata), null);
+	}
+	
+	// read a packet from the buffer's position into reuse (from createReusable) without
+	// allocating, or into a new packet if reuse is null
+	public static packet parseUDPdata(ByteBuffer buffer, packet reuse) throws Exception {
 		int type = buffer.getInt();
 		int seqnum = buffer.getInt();
 		int length = buffer.getInt();
-		byte data[] = new byte[length];
-		buffer.get(data, 0, length);
-		return new packet(type, seqnum, new String(data));
+		int session = buffer.getInt();
+		
+		if (length < 0 || length > MaxDataLength || length > buffer.remaining())
+			throw new Exception("invalid data length " + length);
+		
+		if (reuse != null && length > reuse.data.length)
+			throw new Exception("data length " + length + " exceeds the negotiated payload");
+		
+		packet p = reuse;
+		if (p == null) {
+			p = new packet();
+			p.data = (length == 0) ? noData : new byte[length];
+		}
+		
+		buffer.get(p.data, 0, length);
+		
+		// sequence number is kept as sent, it is already reduced if the sender uses modulo 32
+		p.type = type;
+		p.seqnum = seqnum;
+		p.length = length;
+		p.session = session;
+		return p;
 	}
 }
\ No newline at end of file
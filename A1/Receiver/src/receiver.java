@@ -1,14 +1,18 @@
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * CS 456 Assignment 1
@@ -22,76 +26,602 @@ import java.net.UnknownHostException;
 public class receiver {
     private InetAddress emuAdd;             // hostname for the network emulator
     private int emuPort;                    // UDP port number used by the link emulator to receive ACKs from the receiver
-    private FileOutputStream fileStream;    // name of the file into which the received data is written
-
-    private final int dataPacketLength = 512;
+    private FileSink fileSink;              // file into which the received data is written
 
     private int expectedSeqNum = 0;
     private DatagramSocket monitoringSocket;
-    private packet lastSentInOrderACKPacket;
+    private packet lastSentInOrderACKPacket = packet.createReusable();
+
+    // transfer this receiver serves: a standalone receiver takes the session of the first packet,
+    // a session of a ReceiverServer gets it from the server and sends through the server's channel
+    private int sessionId = 0;
+    private boolean sessionKnown = false;
+    private ReceiverServer server;
+    private SocketAddress ackAddress;
+    private int ackPort = -1;               // announced in the sender's SETUP
+    private SocketAddress fixedACKAddress;  // ReceiverServer -ack
+
+    // datagrams are decoded from and encoded into reused buffers, packets kept for
+    // Selective Repeat or handed to the storage thread come from the pool and go back once
+    // written to the file
+    private byte[] receiveData = new byte[packet.MaxPacketLength];
+    private ByteBuffer receiveBuffer = ByteBuffer.wrap(receiveData);
+    private DatagramPacket receiveDatagramPacket = new DatagramPacket(receiveData, receiveData.length);
+    private packet receivePacket = packet.createReusable();
+
+    private byte[] sendData = new byte[packet.MaxPacketLength];
+    private ByteBuffer sendBuffer = ByteBuffer.wrap(sendData);
+    private DatagramPacket sendDatagramPacket;
+    private packet ackPacket = packet.createReusable();
+
+    private PacketPool packetPool;
+
+    // sequence numbers are reduced modulo 32 unless the sender negotiated 32-bit ones with a SETUP packet
+    private final int SeqNumModulo = 32;
+    private final boolean acceptWideSeqNum;     // receiver agrees to 32-bit sequence numbers
+    private final int wideReceiveWindowSize;    // Selective Repeat window offered with 32-bit sequence numbers
+    private boolean wideSeqNum = false;
+    private TransferSetup acceptedSetup;        // answer to the sender's SETUP, resent on duplicates
+    private final boolean acceptCompression;    // a deflated stream is inflated into fileSink
+
+    // -fec: parity packets rebuild single losses of a group, the packet then takes the path of
+    // a packet that arrived
+    private final boolean acceptFEC;
+    private ParityDecoder parityDecoder;        // null unless negotiated
+
+    // -resume: every checkpointInterval bytes the file is forced to disk and the checkpoint of the
+    // range records how far it goes. A sender proposing to resume skips what it records.
+    private File outputFile;                    // null unless checkpoints are kept
+    private final long checkpointInterval;
+    private TransferCheckpoint checkpoint;      // created during setup, it names the range
+    private long resumedBytes = 0;              // bytes of the range on disk before this transfer
+    private long nextCheckpoint;                // fileSink.getBytesWritten() of the next checkpoint
+    private boolean transferComplete = false;   // EOT delivered
+
+    // -storage thread: in-order payloads are written by a StorageWriter, so ACKs never wait for the
+    // disk. -fsync: force the file every syncInterval bytes (0 once at the end, -1 never).
+    // Checkpoints and forced writes follow the payloads on the thread writing them.
+    private final boolean storageThread;
+    private final int maxStorageQueueLength = 4096;
+    private StorageWriter storageWriter;        // created with the first payload
+    private final long syncInterval;
+    private long nextSync;                      // fileSink.getBytesWritten() of the next forced write
+
+    // payloads larger than packet.DefaultDataLength are negotiated, datagram and packet buffers
+    // then grow to match, and the Selective Repeat window is limited to maxBufferBytes of them
+    private final int maxPayloadSize;
+    private final long maxBufferBytes = 64 * 1024 * 1024;
+
+    // Selective Repeat: out-of-order packets are buffered (indexed by sequence number modulo the
+    // power-of-two buffer length) until the gap is filled
+    private boolean selectiveRepeat;            // -mode, or the mode the sender announces in its SETUP
+    private int receiveWindowSize = SeqNumModulo / 2;
+    private packet[] outOfOrderPacketsBuffer = new packet[SeqNumModulo];
+
+    // Go-Back-N with SACK negotiated: packets are buffered as in Selective Repeat, but every packet
+    // is answered with a SACK packet, the cumulative ACK plus a bitmap of the buffered packets
+    private final boolean acceptSACK;
+    private boolean sack = false;
+    private int highestBufferedSeqNum = -1;     // no buffered packet beyond it
+    private final int maxSACKBits = 8 * (packet.MaxPacketLength - packet.HeaderLength);
 
-    // generating arrival.log files for recording the sequence numbers of all the data packets that the receiver receives
-    private BufferedWriter receivedPacketsSeqNumWriter;
+    // delayed ACKs (-ackevery above 1, off by default): in-order packets of Go-Back-N (with or without
+    // SACK) are acknowledged together, after every ackEvery-th one or ackDelay ms after the first. A gap is
+    // acknowledged at once. Selective Repeat ACKs name single packets and are never delayed.
+    private final int ackEvery;
+    private final long ackDelay;                // ms
+    private int unacknowledgedPackets = 0;      // in-order packets waiting for the delayed ACK
+    private long delayedACKDeadline = -1;       // System.currentTimeMillis() to send it, -1 for none
+    private int socketTimeout = 0;              // current timeout of monitoringSocket, 0 for none
 
-    private receiver (InetAddress emulatorAdd, int emulatorPort, int receiverPort, File fileToWriteTo) 
+    // a standalone receiver whose sender went quiet, or that is stopped (Ctrl-C), still finishes:
+    // the file is closed and with -resume the checkpoint records everything written
+    private final long idleTimeout = 60000;     // ms without a packet once the transfer started
+    private final long stopTimeout = 10000;     // ms the shutdown hook waits for the receiving thread
+    private long lastPacketTime = -1;           // System.currentTimeMillis() of the last packet, -1 before the first
+    private volatile boolean stopping = false;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    // recording the sequence numbers of all the data packets that the receiver receives,
+    // EventLogConverter turns receiver.events (receiver<stream>.events) into arrival.log
+    private EventLog eventLog;
+
+    // statistics printed once the transfer is done
+    private final String name;              // "receiver" or "receiver: stream <n>"
+    private long firstPacketTime = -1;
+    private long bytesWritten = 0;
+    private long packetsArrived = 0;
+    private long acksSent = 0;              // ACK and SACK datagrams
+
+    // stream is the index of the byte range this receiver takes with -streams, -1 for the whole file
+    private receiver (InetAddress emulatorAdd, int emulatorPort, int receiverPort, FileSink sink, ReceiverOptions options, int stream)
             throws FileNotFoundException, SocketException, IOException  {
         emuAdd = emulatorAdd;
         emuPort = emulatorPort;
-        receivedPacketsSeqNumWriter = new BufferedWriter(new FileWriter("arrival.log"));
+        sendDatagramPacket = new DatagramPacket(sendData, sendData.length, emuAdd, emuPort);
+        selectiveRepeat = options.selectiveRepeat;
+        acceptWideSeqNum = options.wideSeqNumAccepted;
+        wideReceiveWindowSize = options.wideWindowSize;
+        acceptSACK = options.sackAccepted;
+        ackEvery = options.ackEvery;
+        ackDelay = options.ackDelay;
+        maxPayloadSize = options.maxPayloadSize;
+        acceptCompression = options.compressionAccepted;
+        acceptFEC = options.fecAccepted;
+        checkpointInterval = options.checkpointInterval;
+        storageThread = options.storageThread;
+        syncInterval = options.syncInterval;
+        nextSync = syncInterval;
+        name = (stream < 0)? "receiver" : "receiver: stream " + stream;
+        eventLog = new EventLog((stream < 0)? "receiver.events" : "receiver" + stream + ".events");
+        packetPool = new PacketPool();
 
-        fileStream = new FileOutputStream(fileToWriteTo);
+        fileSink = sink;
         monitoringSocket = new DatagramSocket(receiverPort);
     }
 
+    // one session of a ReceiverServer: the server hands over the packets of the session and
+    // shares its event log and packet pool with all sessions
+    receiver (ReceiverServer receiverServer, int session, FileSink sink, ReceiverOptions options, EventLog log, PacketPool pool) {
+        server = receiverServer;
+        sessionId = session;
+        sessionKnown = true;
+        selectiveRepeat = options.selectiveRepeat;
+        acceptWideSeqNum = options.wideSeqNumAccepted;
+        wideReceiveWindowSize = options.wideWindowSize;
+        acceptSACK = options.sackAccepted;
+        ackEvery = options.ackEvery;
+        ackDelay = options.ackDelay;
+        maxPayloadSize = options.maxPayloadSize;
+        acceptCompression = options.compressionAccepted;
+        acceptFEC = options.fecAccepted;
+        checkpointInterval = options.checkpointInterval;
+        // sessions cost no thread, and a full storage queue would hold the selector thread of all of them
+        storageThread = false;
+        syncInterval = options.syncInterval;
+        nextSync = syncInterval;
+        name = "ReceiverServer: session " + session;
+        fixedACKAddress = options.ackAddress;
+        eventLog = log;
+        packetPool = pool;
+        receivePacket = pool.take();
+
+        fileSink = sink;
+    }
+
     public void startFileReceiving() throws RuntimeException, IOException, Exception {
-        byte[] receiveData = new byte[dataPacketLength];
+        try {
+            try {
+                receiveFile();
+            } catch (SocketException ex) {
+                if (!stopping)
+                    throw ex;
+            }
+
+            if (stopping)
+                System.out.println(name + ": transfer stopped");
 
+            eventLog.close();
+            monitoringSocket.close();
+            finishReceiving();
+        } finally {
+            stopped.countDown();
+        }
+    }
+
+    // shutdown hook: end the transfer where it is and wait until the receiving thread finished it
+    void stop() throws InterruptedException {
+        stopping = true;
+        monitoringSocket.close();
+        stopped.await(stopTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    private void receiveFile() throws RuntimeException, IOException, Exception {
         while (true) {
+            // wake up when the delayed ACK is due, or when the sender has been quiet for too long
+            int timeout;
+            if (delayedACKDeadline >= 0)
+                timeout = (int) Math.max(1, delayedACKDeadline - System.currentTimeMillis());
+            else
+                timeout = (lastPacketTime < 0)? 0 : (int) idleTimeout;
+            if (timeout != socketTimeout) {
+                monitoringSocket.setSoTimeout(timeout);
+                socketTimeout = timeout;
+            }
+
             // receive packet from sender
-            DatagramPacket receiveDatagramPacket = new DatagramPacket(receiveData, receiveData.length);
-            monitoringSocket.receive(receiveDatagramPacket);
+            receiveDatagramPacket.setLength(receiveData.length);
+            try {
+                monitoringSocket.receive(receiveDatagramPacket);
+            } catch (SocketTimeoutException ex) {
+                long now = System.currentTimeMillis();
+                if (lastPacketTime >= 0 && now - lastPacketTime >= idleTimeout) {
+                    System.out.println(name + ": no packet for " + idleTimeout / 1000 + " s, transfer stopped");
+                    return;
+                }
 
-            packet rcvPacket = packet.parseUDPdata(receiveData);
+                sendDelayedACK(now);
+                continue;
+            }
 
-            checkReceivedPacketValidity(rcvPacket);
+            // stop() closed the socket
+            if (stopping)
+                return;
 
-            if (rcvPacket.getType() == 1) {
-                // recording packet number of received data packet in ack.log
-                receivedPacketsSeqNumWriter.write(String.format("%d\n", rcvPacket.getSeqNum()));
-                receivedPacketsSeqNumWriter.flush();
+            receiveBuffer.clear();
+            receiveBuffer.limit(receiveDatagramPacket.getLength());
+            packet rcvPacket = packet.parseUDPdata(receiveBuffer, receivePacket);
+
+            // the first packet decides the session, packets of other transfers are ignored
+            if (!sessionKnown) {
+                sessionId = rcvPacket.getSessionId();
+                sessionKnown = true;
+            } else if (rcvPacket.getSessionId() != sessionId) {
+                continue;
             }
 
-            // received unexpected packet
-            if (!isReceivingExpectedPacket(rcvPacket)) {
-                // default: (re)send last-sent-in-order ACK packet
-                if (expectedSeqNum != 0)
-                    sendPacket(lastSentInOrderACKPacket);
-            } else {
-                // for debug
-                // System.out.println("receiver: packet " + rcvPacket.getSeqNum() + " received");
+            lastPacketTime = System.currentTimeMillis();
+
+            if (receive(rcvPacket))
+                break;
+
+            // packets arriving faster than the timeout must not hold the delayed ACK back
+            if (delayedACKDeadline >= 0)
+                sendDelayedACK(System.currentTimeMillis());
+        }
+    }
+
+    // -resume: keep checkpoints of the file the sink writes, called before the first packet
+    void keepCheckpoints(File fileWritten) {
+        outputFile = fileWritten;
+    }
+
+    SocketAddress getACKAddress() {
+        return ackAddress;
+    }
+
+    // packet to decode the next datagram of this transfer into
+    packet getReceivePacket() {
+        return receivePacket;
+    }
+
+    // the transfer is over, give the packet to decode into back to its pool
+    void releaseReceivePacket() {
+        packetPool.release(receivePacket);
+    }
+
+    // where the ACKs of a ReceiverServer session go: the port the sender announced on the host
+    // the datagram came from, or the datagram's source itself
+    void setACKAddress(SocketAddress address) {
+        if (fixedACKAddress != null)
+            ackAddress = fixedACKAddress;
+        else if (ackPort > 0 && address instanceof InetSocketAddress)
+            ackAddress = new InetSocketAddress(((InetSocketAddress) address).getAddress(), ackPort);
+        else
+            ackAddress = address;
+    }
+
+    // handle one packet of the transfer, returns true once EOT has been delivered
+    boolean receive(packet rcvPacket) throws RuntimeException, IOException, Exception {
+        checkReceivedPacketValidity(rcvPacket);
+
+        if (rcvPacket.getType() == 3) {
+            answerTransferSetup(rcvPacket);
+            return false;
+        }
+
+        // parity of a group, the missing packet takes its place and the sender learns it is rebuilt
+        if (rcvPacket.getType() == 5) {
+            if (parityDecoder == null || !parityDecoder.rebuild(rcvPacket))
+                return false;
+
+            ackPacket.set(5, rcvPacket.getSeqNum(), 0, wideSeqNum);
+            sendPacket(ackPacket);
+            return receiveSelectiveRepeatPacket(rcvPacket);
+        }
+
+        if (rcvPacket.getType() == 1) {
+            // recording packet number of received data packet
+            eventLog.record(EventLog.Arrived, rcvPacket.getSeqNum());
+
+            if (firstPacketTime < 0)
+                firstPacketTime = System.nanoTime();
+            packetsArrived++;
+        }
+
+        if (selectiveRepeat || sack)
+            return receiveSelectiveRepeatPacket(rcvPacket);
+
+        // received unexpected packet
+        if (!isReceivingExpectedPacket(rcvPacket)) {
+            // default: (re)send last-sent-in-order ACK packet
+            if (expectedSeqNum != 0)
+                sendPacket(lastSentInOrderACKPacket);
+        } else {
+            // for debug
+            // System.out.println("receiver: packet " + rcvPacket.getSeqNum() + " received");
+            
+            if (rcvPacket.getType() == 1) {
+                // update last-sent-in-order ACK packet
+                lastSentInOrderACKPacket.set(0, expectedSeqNum++, 0, wideSeqNum);
+
+                // write received packet to file, the next datagram is decoded into a fresh packet
+                writePacketToFile (rcvPacket);
+                receivePacket = packetPool.take();
                 
-                if (rcvPacket.getType() == 1) {
-                    // update last-sent-in-order ACK packet
-                    lastSentInOrderACKPacket = packet.createACK(expectedSeqNum++);
-
-                    // write received packet to file
-                    writePacketToFile (rcvPacket);
-                    
-                    // send last-sent-in-order ACK packet
-                    sendPacket(lastSentInOrderACKPacket);
-                    
-                    // for debug
-                    // System.out.println("receiver: packet " + lastSentInOrderACKPacket.getSeqNum() + " send");
-                } else if (rcvPacket.getType() == 2) {
-                    sendPacket(rcvPacket);
-                    break;
-                }
+                // send last-sent-in-order ACK packet, now or together with the next ones
+                acknowledgeInOrderPacket();
+                
+                // for debug
+                // System.out.println("receiver: packet " + lastSentInOrderACKPacket.getSeqNum() + " send");
+            } else if (rcvPacket.getType() == 2) {
+                sendPacket(rcvPacket);
+                transferComplete = true;
+                return true;
             }
         }
 
-        receivedPacketsSeqNumWriter.close();
-        fileStream.close();
-        monitoringSocket.close();
+        return false;
+    }
+
+    // close the file and print the statistics of the transfer
+    void finishReceiving() throws IOException {
+        try {
+            // everything delivered reaches the sink before the checkpoint records it
+            if (storageWriter != null)
+                storageWriter.close();
+
+            if (syncInterval >= 0)
+                fileSink.flush();
+
+            // a complete range leaves nothing to resume, an interrupted one where it stopped
+            if (checkpoint != null) {
+                if (transferComplete)
+                    checkpoint.delete();
+                else
+                    saveCheckpoint();
+            }
+        } finally {
+            fileSink.close();
+        }
+
+        double millis = (firstPacketTime < 0)? 0 : (System.nanoTime() - firstPacketTime) / 1000000.0;
+        System.out.println(String.format("%s: %d bytes in %.0f ms (%.2f MB/s), %d packets arrived, %d ACKs sent (%.2f per packet)",
+                name, bytesWritten, millis, bytesWritten / 1000.0 / Math.max(millis, 1), packetsArrived,
+                acksSent, acksSent / (double) Math.max(packetsArrived, 1)));
+
+        if (parityDecoder != null)
+            System.out.println(String.format("%s: %d packets rebuilt from parity", name, parityDecoder.getPacketsRebuilt()));
+
+        if (storageWriter != null)
+            System.out.println(String.format("%s: %d payloads written by the storage thread in %d writes (%.1f per write)",
+                    name, storageWriter.getPayloads(), storageWriter.getWrites(),
+                    storageWriter.getPayloads() / (double) Math.max(storageWriter.getWrites(), 1)));
+
+        if (fileSink instanceof InflatingFileSink)
+            System.out.println(String.format("%s: inflated to %d bytes", name, fileSink.getBytesWritten()));
+    }
+
+    // time the delayed ACK is due, System.currentTimeMillis() based, -1 if no ACK is delayed
+    long getDelayedACKDeadline() {
+        return delayedACKDeadline;
+    }
+
+    // send the delayed ACK if it is due at now
+    void sendDelayedACK(long now) throws IOException, Exception {
+        if (delayedACKDeadline >= 0 && now - delayedACKDeadline >= 0)
+            sendInOrderACK();
+    }
+
+    // the packet just delivered continues the in-order run, acknowledge it now or with the next ones
+    private void acknowledgeInOrderPacket() throws IOException, Exception {
+        if (++unacknowledgedPackets >= ackEvery || ackDelay == 0) {
+            sendInOrderACK();
+            return;
+        }
+
+        if (delayedACKDeadline < 0)
+            delayedACKDeadline = System.currentTimeMillis() + ackDelay;
+    }
+
+    private void sendInOrderACK() throws IOException, Exception {
+        if (sack)
+            sendSACK();
+        else
+            sendPacket(lastSentInOrderACKPacket);
+    }
+
+    // SETUP from the sender: accept 32-bit sequence numbers if allowed and offer the receive window.
+    // A resent SETUP gets the same answer again, the format cannot change once data has arrived.
+    private void answerTransferSetup(packet setupPacket) throws IOException, Exception {
+        if (acceptedSetup == null) {
+            TransferSetup proposal = TransferSetup.parse(new String(setupPacket.getData()));
+            long rangeOffset = proposal.getLong(TransferSetup.RangeOffset, 0);
+            long fileLength = proposal.getLong(TransferSetup.FileSize, -1);
+
+            // a checkpoint only holds for the same file size and range
+            if (outputFile != null && fileLength >= 0) {
+                checkpoint = new TransferCheckpoint(outputFile, rangeOffset, fileLength);
+                nextCheckpoint = checkpointInterval;
+
+                if (proposal.get(TransferSetup.Resume, "off").equals("on"))
+                    resumedBytes = checkpoint.load();
+            }
+
+            fileSink.setRange(rangeOffset + resumedBytes, fileLength);
+
+            if (server != null) {
+                ackPort = proposal.getInt(TransferSetup.ACKPort, -1);
+                setACKAddress(ackAddress);
+            }
+
+            // the sender's mode decides, an unknown one is answered with ours and the sender stops
+            String mode = proposal.get(TransferSetup.Mode, "");
+            if (mode.equals(TransferSetup.SelectiveRepeat))
+                selectiveRepeat = true;
+            else if (mode.equals(TransferSetup.GoBackN))
+                selectiveRepeat = false;
+
+            wideSeqNum = acceptWideSeqNum
+                    && proposal.get(TransferSetup.SeqNumFormat, TransferSetup.SeqNumModulo32).equals(TransferSetup.SeqNum32Bit);
+            sack = acceptSACK && !selectiveRepeat && proposal.get(TransferSetup.SACK, "off").equals("on");
+
+            boolean compression = acceptCompression
+                    && proposal.get(TransferSetup.Compression, "off").equals(TransferSetup.Deflate);
+            if (compression)
+                fileSink = new InflatingFileSink(fileSink);
+
+            boolean fec = acceptFEC && wideSeqNum && (selectiveRepeat || sack)
+                    && proposal.get(TransferSetup.FEC, "off").equals(TransferSetup.XORParity);
+
+            int payloadSize = Math.min(maxPayloadSize, proposal.getInt(TransferSetup.PayloadSize, packet.DefaultDataLength));
+
+            // parity packets are a little longer than data packets
+            if (fec)
+                payloadSize = Math.min(payloadSize, packet.MaxDataLength - ParityDecoder.HeaderLength);
+            int packetDataLength = fec ? payloadSize + ParityDecoder.HeaderLength : payloadSize;
+            if (packetDataLength > packet.DefaultDataLength)
+                growBuffers(packetDataLength);
+
+            if (wideSeqNum) {
+                receiveWindowSize = (int) Math.max(1, Math.min(wideReceiveWindowSize, maxBufferBytes / payloadSize));
+
+                int bufferLength = Integer.highestOneBit(receiveWindowSize);
+                if (bufferLength < receiveWindowSize)
+                    bufferLength <<= 1;
+                outOfOrderPacketsBuffer = new packet[bufferLength];
+            }
+
+            if (fec)
+                parityDecoder = new ParityDecoder(payloadSize, receiveWindowSize);
+
+            acceptedSetup = new TransferSetup();
+            acceptedSetup.set(TransferSetup.Mode, selectiveRepeat ? TransferSetup.SelectiveRepeat : TransferSetup.GoBackN);
+            acceptedSetup.set(TransferSetup.SeqNumFormat, wideSeqNum ? TransferSetup.SeqNum32Bit : TransferSetup.SeqNumModulo32);
+            acceptedSetup.set(TransferSetup.ReceiveWindow, receiveWindowSize);
+            acceptedSetup.set(TransferSetup.SACK, sack ? "on" : "off");
+            acceptedSetup.set(TransferSetup.PayloadSize, payloadSize);
+            acceptedSetup.set(TransferSetup.Compression, compression ? TransferSetup.Deflate : "off");
+            acceptedSetup.set(TransferSetup.FEC, fec ? TransferSetup.XORParity : "off");
+            if (checkpoint != null)
+                acceptedSetup.set(TransferSetup.Resume, Long.toString(resumedBytes));
+        }
+
+        sendPacket(packet.createSetup(acceptedSetup));
+    }
+
+    // datagrams and packets of the transfer get room for the negotiated payload, the packets
+    // come from a pool of their own instead of the shared one of a ReceiverServer
+    private void growBuffers(int payloadSize) {
+        if (server == null) {
+            receiveData = new byte[packet.HeaderLength + payloadSize];
+            receiveBuffer = ByteBuffer.wrap(receiveData);
+            receiveDatagramPacket = new DatagramPacket(receiveData, receiveData.length);
+        }
+
+        packetPool.release(receivePacket);
+        packetPool = new PacketPool(payloadSize);
+        receivePacket = packetPool.take();
+    }
+
+    // Selective Repeat: ACK every packet inside the receive window, buffer it if it is out of order
+    // and deliver the in-order run once the gap is filled. Returns true once EOT has been delivered.
+    // With SACK the packet is answered by a SACK packet once the in-order run is delivered.
+    private boolean receiveSelectiveRepeatPacket(packet rcvPacket) throws IOException, Exception {
+        int offset;
+
+        if (wideSeqNum) {
+            offset = rcvPacket.getSeqNum() - expectedSeqNum;
+        } else {
+            // offsets in the upper half of the sequence space belong to the previous window
+            offset = (rcvPacket.getSeqNum() - expectedSeqNum % SeqNumModulo + SeqNumModulo) % SeqNumModulo;
+            if (offset >= SeqNumModulo - receiveWindowSize)
+                offset -= SeqNumModulo;
+        }
+
+        if (offset < 0 || offset >= receiveWindowSize) {
+            // packet from the previous window: its ACK got lost, so ACK it again
+            if (offset < 0 && offset >= -receiveWindowSize && rcvPacket.getType() == 1) {
+                if (sack)
+                    sendSACK();
+                else
+                    sendACK(rcvPacket.getSeqNum());
+            }
+
+            return false;
+        }
+
+        // EOT is acknowledged by echoing it once everything before it is delivered
+        if (rcvPacket.getType() == 1 && !sack)
+            sendACK(rcvPacket.getSeqNum());
+
+        int bufferMask = outOfOrderPacketsBuffer.length - 1;
+        int index = (expectedSeqNum + offset) & bufferMask;
+
+        if (outOfOrderPacketsBuffer[index] == null) {
+            if (parityDecoder != null && rcvPacket.getType() == 1)
+                parityDecoder.add(rcvPacket);
+
+            // keep the packet, the next datagram is decoded into a fresh one from the pool
+            outOfOrderPacketsBuffer[index] = rcvPacket;
+            receivePacket = packetPool.take();
+
+            if (offset > highestBufferedSeqNum - expectedSeqNum)
+                highestBufferedSeqNum = expectedSeqNum + offset;
+        }
+
+        // deliver buffered packets starting at expectedSeqNum
+        int delivered = 0;
+        packet nextPacket;
+        while ((nextPacket = outOfOrderPacketsBuffer[expectedSeqNum & bufferMask]) != null) {
+            outOfOrderPacketsBuffer[expectedSeqNum & bufferMask] = null;
+
+            if (nextPacket.getType() == 2) {
+                sendPacket(nextPacket);
+                transferComplete = true;
+                return true;
+            }
+
+            writePacketToFile(nextPacket);
+            expectedSeqNum++;
+            delivered++;
+        }
+
+        // SACK: only a packet that simply extends the in-order run may wait for its ACK
+        if (sack) {
+            if (delivered == 1 && highestBufferedSeqNum - expectedSeqNum < 0)
+                acknowledgeInOrderPacket();
+            else
+                sendSACK();
+        }
+
+        return false;
+    }
+
+    // cumulative ACK of expectedSeqNum - 1, bit i of the payload tells whether packet
+    // expectedSeqNum + 1 + i is buffered. Nothing is sent before the first in-order packet,
+    // as in plain Go-Back-N.
+    private void sendSACK() throws IOException, Exception {
+        if (expectedSeqNum == 0)
+            return;
+
+        byte[] bitmap = ackPacket.getDataArray();
+        int bufferMask = outOfOrderPacketsBuffer.length - 1;
+        int bits = Math.min(highestBufferedSeqNum - expectedSeqNum, maxSACKBits);
+        int length = 0;
+
+        for (int i = 0; i < bits; i++) {
+            if ((i & 7) == 0)
+                bitmap[i >> 3] = 0;
+
+            if (outOfOrderPacketsBuffer[(expectedSeqNum + 1 + i) & bufferMask] != null) {
+                bitmap[i >> 3] |= (byte) (1 << (i & 7));
+                length = (i >> 3) + 1;
+            }
+        }
+
+        ackPacket.set(4, expectedSeqNum - 1, length, wideSeqNum);
+        sendPacket(ackPacket);
     }
 
     private void checkReceivedPacketValidity(packet p) throws RuntimeException {
@@ -104,25 +634,109 @@ public class receiver {
             // EOT packet
             if (p.getLength() > 0)
                 throw new RuntimeException("receiver: EOT packet corrupted");
+        } else if (p.getType() == 5) {
+            // parity packet: group size, length XOR and payload XOR
+            if (p.getLength() < ParityDecoder.HeaderLength)
+                throw new RuntimeException("receiver: Parity packet corrupted");
+        } else if (p.getType() == 3) {
+            // SETUP packet
+            if (expectedSeqNum != 0 && acceptedSetup == null)
+                throw new RuntimeException("receiver: SETUP packet received after the transfer started");
         } else {
             throw new RuntimeException("receiver: Undefined packet received: type " + p.getType());
         }
     }
 
+    // deliver the payload and take the packet over: it goes back to the pool once written, at
+    // once or by the storage thread
     private void writePacketToFile (packet rcvPacket) throws IOException {
-        fileStream.write(rcvPacket.getData());
+        bytesWritten += rcvPacket.getLength();
+
+        if (storageThread) {
+            if (storageWriter == null) {
+                int queueLength = (int) Math.max(1, Math.min(maxStorageQueueLength, maxBufferBytes / packetPool.getDataLength()));
+
+                storageWriter = new StorageWriter(fileSink, packetPool, queueLength, new StorageWriter.WriteListener() {
+                    public void onWritten() throws IOException {
+                        onPayloadsWritten();
+                    }
+                }, name);
+            }
+
+            storageWriter.write(rcvPacket);
+            return;
+        }
+
+        fileSink.write(rcvPacket.getDataArray(), 0, rcvPacket.getLength());
+        packetPool.release(rcvPacket);
+        onPayloadsWritten();
+    }
+
+    // payloads reached the sink, on the storage thread if there is one
+    private void onPayloadsWritten() throws IOException {
+        if (checkpoint != null && fileSink.getBytesWritten() >= nextCheckpoint) {
+            saveCheckpoint();
+        } else if (syncInterval > 0 && fileSink.getBytesWritten() >= nextSync) {
+            fileSink.flush();
+            nextSync = fileSink.getBytesWritten() + syncInterval;
+        }
+    }
+
+    // the checkpoint must never record bytes that are not on disk yet
+    private void saveCheckpoint() throws IOException {
+        fileSink.flush();
+        checkpoint.save(resumedBytes + fileSink.getBytesWritten());
+        nextCheckpoint = fileSink.getBytesWritten() + checkpointInterval;
     }
 
     private void sendPacket(packet p) throws IOException {
-        // send packet as byte array field of java DatagramPacket
-        byte[] sendData = p.getUDPdata();
-        DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, emuAdd, emuPort);
+        // every ACK acknowledges the delayed one too
+        if (p.getType() == 0 || p.getType() == 4) {
+            unacknowledgedPackets = 0;
+            delayedACKDeadline = -1;
+            acksSent++;
+        }
 
-        monitoringSocket.send(sendPacket);
+        // send packet as byte array field of java DatagramPacket, only header and payload:
+        // an ACK is a 16-byte datagram
+        sendBuffer.clear();
+        p.setSessionId(sessionId);
+        p.encode(sendBuffer);
+
+        if (server != null) {
+            sendBuffer.flip();
+            server.send(sendBuffer, ackAddress);
+            return;
+        }
+
+        sendDatagramPacket.setLength(sendBuffer.position());
+        monitoringSocket.send(sendDatagramPacket);
+    }
+
+    private void sendACK(int seqNum) throws IOException, Exception {
+        ackPacket.set(0, seqNum, 0, wideSeqNum);
+        sendPacket(ackPacket);
     }
 
     private boolean isReceivingExpectedPacket(packet p) {
-        return p.getSeqNum() == expectedSeqNum % 32;
+        if (wideSeqNum)
+            return p.getSeqNum() == expectedSeqNum;
+
+        return p.getSeqNum() == expectedSeqNum % SeqNumModulo;
+    }
+
+    // Ctrl-C ends the transfers where they are, closing the file and saving the checkpoints
+    private static void stopOnShutdown(final receiver[] fileReceivers) {
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                try {
+                    for (int i = 0; i < fileReceivers.length; i++)
+                        fileReceivers[i].stop();
+                } catch (InterruptedException ex) {
+                    // the JVM exits anyway
+                }
+            }
+        }, "receiver shutdown"));
     }
 
     public static void main(String [ ] args) {
@@ -136,7 +750,9 @@ public class receiver {
                    + "\t<hostname for the network emulator>\n"
                    + "\t<UDP port number used by the link emulator to receive ACKs from the receiver>\n"
                    + "\t<UDP port number used by the receiver to receive data from the emulator>\n"
-                   + "\t<name of the file into which the received data is written>";
+                   + "\t<name of the file into which the received data is written>\n\n"
+                   + ReceiverOptions.usage
+                   + ReceiverOptions.streamsUsage;
                throw new RuntimeException(str);
             }
 
@@ -145,6 +761,12 @@ public class receiver {
             int receiverPort = Integer.parseInt(args[2]);
             File fileToWriteTo = new File(args[3]);
 
+            ReceiverOptions options = ReceiverOptions.parse(args, 4, "receiver");
+            int streams = options.streams;
+
+            if (options.ackAddress != null)
+                throw new RuntimeException("receiver: -ack is an option of ReceiverServer");
+
             // create new if give file does not exist
             if (!fileToWriteTo.exists())
                 fileToWriteTo.createNewFile();
@@ -155,8 +777,55 @@ public class receiver {
                 throw new RuntimeException(str);
             }
 
-            receiver fileReceiver = new receiver(emulatorAdd, emulatorPort, receiverPort, fileToWriteTo);
-            fileReceiver.startFileReceiving();
+            // sinks write into the file without truncating it, so empty it once for all streams,
+            // unless an interrupted transfer may continue in it
+            if (!options.resume) {
+                RandomAccessFile emptyFile = new RandomAccessFile(fileToWriteTo, "rw");
+                emptyFile.setLength(0);
+                emptyFile.close();
+            }
+
+            if (streams == 1) {
+                FileSink fileSink = options.mappedFile ? new MappedFileSink(fileToWriteTo) : new StreamFileSink(fileToWriteTo);
+                receiver fileReceiver = new receiver(emulatorAdd, emulatorPort, receiverPort, fileSink, options, -1);
+                if (options.resume)
+                    fileReceiver.keepCheckpoints(fileToWriteTo);
+                stopOnShutdown(new receiver[] { fileReceiver });
+                fileReceiver.startFileReceiving();
+                return;
+            }
+
+            // -streams: stream i receives data on receiverPort + i and sends ACKs to emulatorPort + i,
+            // the sender tells each stream in its SETUP where its byte range starts
+            Thread[] threads = new Thread[streams];
+            receiver[] fileReceivers = new receiver[streams];
+
+            for (int i = 0; i < streams; i++) {
+                FileSink fileSink = options.mappedFile ? new MappedFileSink(fileToWriteTo) : new StreamFileSink(fileToWriteTo);
+                fileReceivers[i] = new receiver(emulatorAdd, emulatorPort + i, receiverPort + i, fileSink, options, i);
+                if (options.resume)
+                    fileReceivers[i].keepCheckpoints(fileToWriteTo);
+            }
+            stopOnShutdown(fileReceivers);
+
+            for (int i = 0; i < streams; i++) {
+                final receiver fileReceiver = fileReceivers[i];
+                final int stream = i;
+
+                threads[i] = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            fileReceiver.startFileReceiving();
+                        } catch (Exception ex) {
+                            System.out.println("receiver: stream " + stream + ": " + ex.getMessage());
+                        }
+                    }
+                }, "receiver stream " + i);
+                threads[i].start();
+            }
+
+            for (int i = 0; i < streams; i++)
+                threads[i].join();
 
         } catch (UnknownHostException ex) {
             System.out.println("receiver: Can't resolve the host address of the network emulator: " + ex.getMessage());
@@ -168,6 +837,8 @@ public class receiver {
             System.out.println("receiver: Could not create DatagramSocket (on given port) " + ex.getMessage());
         } catch (IOException ex) {
             System.out.println("receiver: File I/O error" + ex.getMessage());
+        } catch (InterruptedException ex) {
+            System.out.println("receiver: Process interrupted unexpectedly: " + ex.getMessage());
         } catch (Exception ex) {
             System.out.println("receiver: packet.createPacket: " + ex.getMessage());
         }
@@ -0,0 +1,156 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+// CompressingDataSource: deflates another source block by block (-compress), the packets carry
+// the resulting stream and the receiver inflates it while writing in order. Every block is an
+// 8 byte header, its raw length and stored length, followed by the stored bytes: deflated if
+// that is shorter than the raw block, the raw bytes otherwise. A block that does not shrink by
+// at least minSaving is a sign of compressed media, the next blocks are then stored without
+// trying, twice as many after every further failure, so incompressible files cost little CPU.
+class CompressingDataSource implements PacketDataSource {
+    private final int blockSize = 64 * 1024;
+    private final int headerLength = 8;
+    private final double minSaving = 1.0 / 16;
+    private final int maxSkippedBlocks = 64;
+
+    private PacketDataSource source;
+    private Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+    private byte[] rawBlock = new byte[blockSize];
+    private ByteBuffer encodedBlock = ByteBuffer.allocate(headerLength + blockSize);
+    private boolean sourceFinished = false;
+
+    private int skipBlocks = 0;                 // blocks left to store without trying to deflate
+    private int skipAfterFailure = 1;
+
+    // statistics
+    private long encodedLength = 0;
+    private long deflatedBlocks = 0;
+    private long storedBlocks = 0;
+
+    public CompressingDataSource(PacketDataSource rawSource) {
+        source = rawSource;
+        encodedBlock.flip();
+    }
+
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int total = 0;
+
+        // fill the whole length across blocks, only the last read may be short
+        while (total < length) {
+            if (!encodedBlock.hasRemaining() && !encodeNextBlock())
+                break;
+
+            int count = Math.min(length - total, encodedBlock.remaining());
+            encodedBlock.get(buffer, offset + total, count);
+            total += count;
+        }
+
+        encodedLength += total;
+        return (total == 0)? -1 : total;
+    }
+
+    // read and encode the next block, false once the source is exhausted
+    private boolean encodeNextBlock() throws IOException {
+        if (sourceFinished)
+            return false;
+
+        int rawLength = 0;
+        while (rawLength < blockSize) {
+            int ret = source.read(rawBlock, rawLength, blockSize - rawLength);
+            if (ret == -1) {
+                sourceFinished = true;
+                break;
+            }
+            rawLength += ret;
+        }
+
+        if (rawLength == 0)
+            return false;
+
+        byte[] encoded = encodedBlock.array();
+        int storedLength = rawLength;
+
+        if (skipBlocks > 0)
+            skipBlocks--;
+        else
+            storedLength = deflateBlock(rawLength);
+
+        if (storedLength < rawLength) {
+            deflatedBlocks++;
+        } else {
+            System.arraycopy(rawBlock, 0, encoded, headerLength, rawLength);
+            storedLength = rawLength;
+            storedBlocks++;
+        }
+
+        encodedBlock.clear();
+        encodedBlock.putInt(rawLength);
+        encodedBlock.putInt(storedLength);
+        encodedBlock.position(0);
+        encodedBlock.limit(headerLength + storedLength);
+        return true;
+    }
+
+    // deflate rawBlock behind the header, returns the deflated length or rawLength if that is not
+    // shorter, and decides whether the next blocks are worth deflating
+    private int deflateBlock(int rawLength) {
+        byte[] encoded = encodedBlock.array();
+
+        deflater.reset();
+        deflater.setInput(rawBlock, 0, rawLength);
+        deflater.finish();
+
+        // output beyond the raw length is of no use, stop there
+        int deflatedLength = 0;
+        while (!deflater.finished() && deflatedLength < rawLength)
+            deflatedLength += deflater.deflate(encoded, headerLength + deflatedLength, rawLength - deflatedLength);
+
+        if (!deflater.finished())
+            deflatedLength = rawLength;
+
+        if (deflatedLength > rawLength * (1 - minSaving)) {
+            skipBlocks = skipAfterFailure;
+            skipAfterFailure = Math.min(2 * skipAfterFailure, maxSkippedBlocks);
+        } else {
+            skipAfterFailure = 1;
+        }
+
+        return deflatedLength;
+    }
+
+    public void skip(long bytes) throws IOException {
+        source.skip(bytes);
+    }
+
+    public long offset() {
+        return source.offset();
+    }
+
+    public long length() {
+        return source.length();
+    }
+
+    public long fileLength() {
+        return source.fileLength();
+    }
+
+    // bytes of the encoded stream handed out so far
+    public long getEncodedLength() {
+        return encodedLength;
+    }
+
+    public long getDeflatedBlocks() {
+        return deflatedBlocks;
+    }
+
+    public long getStoredBlocks() {
+        return storedBlocks;
+    }
+
+    public void close() throws IOException {
+        deflater.end();
+        source.close();
+    }
+}
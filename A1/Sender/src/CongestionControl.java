@@ -0,0 +1,19 @@
+// CongestionControl: decides how many packets the sender may have in flight. The sender
+// reports ACKs and loss events, implementations only keep the window, so algorithms can be
+// swapped on the command line and compared on the same transfer.
+interface CongestionControl {
+    // current congestion window in packets, at least 1
+    int getWindow();
+
+    // newlyAckedPackets packets left the window, rttMillis is the RTT sample taken from this
+    // ACK or -1 when none could be taken (Karn's rule)
+    void onACK(int newlyAckedPackets, double rttMillis);
+
+    // loss detected by duplicate ACKs
+    void onDuplicateACKs();
+
+    // retransmission timer expired
+    void onTimeout();
+
+    String getName();
+}
@@ -0,0 +1,41 @@
+// DuplicateACKCounter: counts the ACKs that do not move base and tells the sender when they are
+// enough for a fast retransmit. Once packets have been resent, by fast retransmit of a Go-Back-N
+// window or by a timeout, every resent packet above the loss makes the receiver repeat its ACK
+// again; those duplicates say nothing about a new loss. So, like NewReno's recover variable,
+// duplicates are ignored until they acknowledge more than the resend covered, i.e. base has
+// passed nextSeqNum of the resend. Called with mux held.
+class DuplicateACKCounter {
+    private final int threshold;
+    private int count = 0;
+    private boolean recovering = false;         // packets below recoverSeqNum have been resent
+    private int recoverSeqNum;
+
+    public DuplicateACKCounter(int duplicateACKThreshold) {
+        threshold = duplicateACKThreshold;
+    }
+
+    // an ACK moved base, or recovery ended: count from zero
+    public void reset() {
+        count = 0;
+    }
+
+    // an ACK that did not move base, extraWait duplicates are waited for on top of the threshold.
+    // Returns true on the duplicate that reaches it, at most once until the next new ACK.
+    public boolean onDuplicateACK(int base, int extraWait) {
+        // a duplicate repeats base - 1: up to recoverSeqNum - 1 it can be the answer to a resent packet
+        if (recovering) {
+            if (base - recoverSeqNum <= 0)
+                return false;
+            recovering = false;
+        }
+
+        return ++count == threshold + extraWait;
+    }
+
+    // the packets below nextSeqNum have been resent
+    public void onResent(int nextSeqNum) {
+        recovering = true;
+        recoverSeqNum = nextSeqNum;
+        count = 0;
+    }
+}
@@ -0,0 +1,129 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * EventLogConverter: turns a binary EventLog file back into the text logs of the assignment,
+ * seqnum.log (packets sent, including retransmissions), ack.log (ACKs received by the sender)
+ * and arrival.log (packets received by the receiver), one sequence number per line.
+ * With -timestamps every event is printed instead, as milliseconds since the log was created.
+ */
+public class EventLogConverter {
+
+    public static void main(String [ ] args) {
+        if (args.length < 1 || (args[0].equals("-timestamps") && args.length < 2)) {
+            System.out.println("Usage:\n"
+                    + "\tjava EventLogConverter <event log> [<output directory>]\n"
+                    + "\tjava EventLogConverter -timestamps <event log>");
+            return;
+        }
+
+        try {
+            if (args[0].equals("-timestamps"))
+                printTimestamps(new File(args[1]));
+            else
+                writeTextLogs(new File(args[0]), new File(args.length > 1 ? args[1] : "."));
+
+        } catch (RuntimeException ex) {
+            System.out.println(ex.getMessage());
+        } catch (IOException ex) {
+            System.out.println("EventLogConverter: File I/O error " + ex.getMessage());
+        }
+    }
+
+    // text logs are only created for the events the file contains
+    private static void writeTextLogs(File eventLog, File directory) throws IOException {
+        DataInputStream in = openEventLog(eventLog);
+        in.readLong();                  // wall clock time of creation
+        in.readLong();                  // nanoTime at creation
+        Writer seqNumLog = null, ackLog = null, arrivalLog = null;
+
+        try {
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException ex) {
+                    break;
+                }
+                int seqNum = in.readInt();
+                in.readLong();
+
+                String line = seqNum + "\n";
+
+                if (type == EventLog.Sent || type == EventLog.Retransmitted) {
+                    if (seqNumLog == null)
+                        seqNumLog = new BufferedWriter(new FileWriter(new File(directory, "seqnum.log")));
+                    seqNumLog.write(line);
+                } else if (type == EventLog.ACKReceived) {
+                    if (ackLog == null)
+                        ackLog = new BufferedWriter(new FileWriter(new File(directory, "ack.log")));
+                    ackLog.write(line);
+                } else if (type == EventLog.Arrived) {
+                    if (arrivalLog == null)
+                        arrivalLog = new BufferedWriter(new FileWriter(new File(directory, "arrival.log")));
+                    arrivalLog.write(line);
+                } else {
+                    throw new RuntimeException("EventLogConverter: Undefined event type " + type);
+                }
+            }
+
+        } finally {
+            in.close();
+            if (seqNumLog != null)
+                seqNumLog.close();
+            if (ackLog != null)
+                ackLog.close();
+            if (arrivalLog != null)
+                arrivalLog.close();
+        }
+    }
+
+    private static void printTimestamps(File eventLog) throws IOException {
+        DataInputStream in = openEventLog(eventLog);
+        in.readLong();                  // wall clock time of creation
+        long startNanos = in.readLong();
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+        String[] names = { "", "sent", "retransmitted", "ack", "arrival" };
+
+        try {
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException ex) {
+                    break;
+                }
+                int seqNum = in.readInt();
+                long nanos = in.readLong();
+
+                String name = (type > 0 && type < names.length)? names[type] : "type" + type;
+                out.write(String.format("%.3f %s %d\n", (nanos - startNanos) / 1000000.0, name, seqNum));
+            }
+
+        } finally {
+            in.close();
+            out.flush();
+        }
+    }
+
+    // opens the file and checks its header, the stream is left at the wall clock time
+    private static DataInputStream openEventLog(File eventLog) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(eventLog), 1 << 16));
+
+        if (in.readInt() != EventLog.Magic) {
+            in.close();
+            throw new RuntimeException("EventLogConverter: " + eventLog + " is not an event log");
+        }
+
+        return in;
+    }
+}
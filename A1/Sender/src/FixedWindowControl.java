@@ -0,0 +1,25 @@
+// FixedWindowControl: constant window, the behaviour of the original sender
+class FixedWindowControl implements CongestionControl {
+    private final int window;
+
+    public FixedWindowControl(int windowSize) {
+        window = windowSize;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    public void onACK(int newlyAckedPackets, double rttMillis) {
+    }
+
+    public void onDuplicateACKs() {
+    }
+
+    public void onTimeout() {
+    }
+
+    public String getName() {
+        return "fixed";
+    }
+}
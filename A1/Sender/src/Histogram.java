@@ -0,0 +1,60 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Histogram: counts of non-negative values in power of two buckets, bucket i holds values from
+// 2^i to 2^(i+1) - 1 (bucket 0 also holds 0). Recording takes no lock.
+class Histogram {
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+
+    public void record(long value) {
+        value = Math.max(0, value);
+
+        buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(value | 1));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return (n > 0)? sum.get() / (double) n : 0;
+    }
+
+    // upper bound of the bucket holding the given fraction of the values, 0 without values
+    public double getPercentile(double fraction) {
+        long[] counts = getBuckets();
+        long total = 0;
+
+        for (long c : counts)
+            total += c;
+
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0)
+                return Math.pow(2, i + 1);
+        }
+
+        return 0;
+    }
+
+    // counts up to the highest bucket in use
+    public long[] getBuckets() {
+        int length = 0;
+        for (int i = 0; i < buckets.length(); i++)
+            if (buckets.get(i) > 0)
+                length = i + 1;
+
+        long[] counts = new long[length];
+        for (int i = 0; i < length; i++)
+            counts[i] = buckets.get(i);
+        return counts;
+    }
+}
@@ -0,0 +1,74 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// MappedDataSource: maps the file region by region and copies payloads straight out of the
+// mapping, so reading costs no system call per packet
+class MappedDataSource implements PacketDataSource {
+    private final long regionSize = 64 * 1024 * 1024;
+
+    private RandomAccessFile file;
+    private FileChannel fileChannel;
+    private long fileLength;
+    private long rangeOffset;
+    private long rangeEnd;
+
+    private MappedByteBuffer region;        // mapping of [regionStart, regionStart + region.capacity())
+    private long regionStart = 0;
+    private long position;                  // next byte to read
+
+    public MappedDataSource(File fileToMap) throws IOException {
+        this(fileToMap, 0, fileToMap.length());
+    }
+
+    public MappedDataSource(File fileToMap, long offset, long length) throws IOException {
+        file = new RandomAccessFile(fileToMap, "r");
+        fileChannel = file.getChannel();
+        fileLength = fileChannel.size();
+        rangeOffset = offset;
+        rangeEnd = offset + length;
+        position = offset;
+    }
+
+    public void skip(long bytes) {
+        position = Math.min(rangeEnd, position + bytes);
+    }
+
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (position >= rangeEnd)
+            return -1;
+
+        int count = (int) Math.min(length, rangeEnd - position);
+
+        // map the next region when the payload is not inside the current one
+        if (region == null || position + count > regionStart + region.capacity()) {
+            regionStart = position;
+            region = fileChannel.map(FileChannel.MapMode.READ_ONLY, regionStart, Math.min(regionSize, rangeEnd - regionStart));
+        }
+
+        region.position((int) (position - regionStart));
+        region.get(buffer, offset, count);
+
+        position += count;
+        return count;
+    }
+
+    public long offset() {
+        return rangeOffset;
+    }
+
+    public long length() {
+        return rangeEnd - rangeOffset;
+    }
+
+    public long fileLength() {
+        return fileLength;
+    }
+
+    public void close() throws IOException {
+        region = null;
+        file.close();
+    }
+}
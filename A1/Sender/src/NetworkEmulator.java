@@ -0,0 +1,367 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+// NetworkEmulator: pure Java stand-in for nEmulator between sender and receiver. Datagrams from
+// the sender go over the forward link to the receiver, ACKs over the backward link to the sender,
+// and each link has its own delay, jitter, loss, reordering, duplication and bandwidth. A seeded
+// random generator per link makes runs repeatable. It runs on one daemon thread, so a benchmark
+// can start it in the same JVM as the endpoints; main() runs it on its own with the arguments
+// of nEmulator.
+public class NetworkEmulator implements Runnable {
+
+    // settings and counters of one direction
+    public static class Link {
+        public long delay = 0;                  // ms every datagram takes
+        public long jitter = 0;                 // up to this many ms more, uniformly distributed
+        public double loss = 0;                 // probability a datagram is dropped, EOT never is
+        public double reorder = 0;              // probability a datagram is held back so later ones overtake it
+        public long reorderDelay = 5;           // ms a reordered datagram is held back
+        public double duplicate = 0;            // probability a datagram is delivered twice
+        public long bitsPerSecond = 0;          // bandwidth, 0 for unlimited
+        public int queueLimit = 1000;           // datagrams waiting for the bandwidth, more are dropped
+
+        // counters, read them once the emulator is closed
+        public long forwarded = 0;
+        public long dropped = 0;
+        public long queueDrops = 0;
+        public long reordered = 0;
+        public long duplicated = 0;
+
+        private Random random;
+        private long linkFreeTime;              // nanoTime the last queued datagram is through the bandwidth limit
+        private int queued = 0;                 // datagrams scheduled and not delivered yet
+
+        public String toString() {
+            return String.format("%d forwarded, %d dropped, %d dropped by the queue, %d reordered, %d duplicated",
+                    forwarded, dropped, queueDrops, reordered, duplicated);
+        }
+    }
+
+    // a datagram on its way, pooled: the buffer only grows
+    private static class Datagram implements Comparable<Datagram> {
+        byte[] data = new byte[packet.MaxPacketLength];
+        int length;
+        long deliveryTime;
+        long order;                             // ties are delivered in arrival order
+        Link link;
+        DatagramChannel channel;
+        SocketAddress target;
+
+        public int compareTo(Datagram other) {
+            long diff = deliveryTime - other.deliveryTime;
+            if (diff == 0)
+                diff = order - other.order;
+            return (diff < 0)? -1 : (diff > 0)? 1 : 0;
+        }
+    }
+
+    private final Link forward;
+    private final Link backward;
+    private final InetSocketAddress receiverAddress;
+    private final InetSocketAddress senderAddress;
+    private final boolean verbose;
+
+    private DatagramChannel forwardChannel;     // receives from the sender, sends to the sender
+    private DatagramChannel backwardChannel;    // receives from the receiver, sends to the receiver
+    private Selector selector;
+    private ByteBuffer receiveBuffer = ByteBuffer.allocate(packet.MaxDatagramLength);
+
+    private PriorityQueue<Datagram> inFlight = new PriorityQueue<Datagram>();
+    private Datagram[] freeDatagrams = new Datagram[64];
+    private int freeCount = 0;
+    private long arrivals = 0;
+
+    private volatile boolean running = true;
+    private Thread thread;
+
+    public NetworkEmulator(int forwardPort, InetSocketAddress receiver, int backwardPort, InetSocketAddress sender,
+            Link forwardLink, Link backwardLink, long seed, boolean isVerbose) throws IOException {
+        forward = forwardLink;
+        backward = backwardLink;
+        receiverAddress = receiver;
+        senderAddress = sender;
+        verbose = isVerbose;
+
+        // one generator per link, so the traffic of one direction does not change the other's
+        Random seeds = new Random(seed);
+        forward.random = new Random(seeds.nextLong());
+        backward.random = new Random(seeds.nextLong());
+
+        selector = Selector.open();
+
+        forwardChannel = DatagramChannel.open();
+        forwardChannel.socket().bind(new InetSocketAddress(forwardPort));
+        forwardChannel.configureBlocking(false);
+        forwardChannel.register(selector, SelectionKey.OP_READ);
+
+        backwardChannel = DatagramChannel.open();
+        backwardChannel.socket().bind(new InetSocketAddress(backwardPort));
+        backwardChannel.configureBlocking(false);
+        backwardChannel.register(selector, SelectionKey.OP_READ);
+    }
+
+    public Link getForwardLink() {
+        return forward;
+    }
+
+    public Link getBackwardLink() {
+        return backward;
+    }
+
+    // run on a daemon thread of its own
+    public void start() {
+        thread = new Thread(this, "NetworkEmulator");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // stop forwarding, datagrams still in flight are lost
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+            }
+        }
+
+        selector.close();
+        forwardChannel.close();
+        backwardChannel.close();
+    }
+
+    public void run() {
+        try {
+            while (running) {
+                long now = System.nanoTime();
+
+                while (!inFlight.isEmpty() && inFlight.peek().deliveryTime - now <= 0)
+                    deliver(inFlight.poll());
+
+                // delays are whole milliseconds, a partial one is rounded up
+                if (inFlight.isEmpty())
+                    selector.select();
+                else
+                    selector.select(Math.max(1, (inFlight.peek().deliveryTime - now + 999999) / 1000000));
+
+                selector.selectedKeys().clear();
+
+                receiveAll(forwardChannel, forward, backwardChannel, receiverAddress);
+                receiveAll(backwardChannel, backward, forwardChannel, senderAddress);
+            }
+
+        } catch (IOException ex) {
+            if (running)
+                System.out.println("NetworkEmulator: UDP I/O error " + ex.getMessage());
+        }
+    }
+
+    // everything queued on channel goes over link, out through outChannel to target
+    private void receiveAll(DatagramChannel channel, Link link, DatagramChannel outChannel, SocketAddress target) throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            if (channel.receive(receiveBuffer) == null)
+                return;
+            receiveBuffer.flip();
+
+            long now = System.nanoTime();
+            int type = (receiveBuffer.remaining() >= 4)? receiveBuffer.getInt(0) : -1;
+
+            // as in nEmulator, EOT is never lost
+            if (type != 2 && link.random.nextDouble() < link.loss) {
+                link.dropped++;
+                log("drop", link, type);
+                continue;
+            }
+
+            schedule(link, outChannel, target, now, false);
+
+            if (link.random.nextDouble() < link.duplicate) {
+                link.duplicated++;
+                schedule(link, outChannel, target, now, true);
+            }
+        }
+    }
+
+    // put the datagram in receiveBuffer on its way, it takes the bandwidth first and then the delay
+    private void schedule(Link link, DatagramChannel outChannel, SocketAddress target, long now, boolean copy) throws IOException {
+        int length = receiveBuffer.remaining();
+        long departure = now;
+
+        if (link.bitsPerSecond > 0) {
+            if (link.queued >= link.queueLimit) {
+                link.queueDrops++;
+                log("queue drop", link, receiveBuffer.getInt(0));
+                return;
+            }
+
+            departure = Math.max(now, link.linkFreeTime) + length * 8L * 1000000000L / link.bitsPerSecond;
+            link.linkFreeTime = departure;
+        }
+
+        long delayNanos = link.delay * 1000000;
+        if (link.jitter > 0)
+            delayNanos += (long) (link.random.nextDouble() * link.jitter * 1000000);
+        if (link.reorder > 0 && link.random.nextDouble() < link.reorder) {
+            link.reordered++;
+            delayNanos += link.reorderDelay * 1000000;
+        }
+
+        Datagram d = takeDatagram(length);
+        receiveBuffer.get(d.data, 0, length);
+        receiveBuffer.position(0);
+        d.length = length;
+        d.deliveryTime = departure + delayNanos;
+        d.order = arrivals++;
+        d.link = link;
+        d.channel = outChannel;
+        d.target = target;
+
+        link.queued++;
+
+        if (verbose)
+            log(copy ? "duplicate" : "forward", link, ByteBuffer.wrap(d.data, 0, length).getInt(0));
+
+        // no delay at all: skip the queue
+        if (d.deliveryTime - now <= 0 && inFlight.isEmpty())
+            deliver(d);
+        else
+            inFlight.add(d);
+    }
+
+    private void deliver(Datagram d) throws IOException {
+        d.channel.send(ByteBuffer.wrap(d.data, 0, d.length), d.target);
+        d.link.queued--;
+        d.link.forwarded++;
+        releaseDatagram(d);
+    }
+
+    private Datagram takeDatagram(int length) {
+        Datagram d = (freeCount > 0)? freeDatagrams[--freeCount] : new Datagram();
+
+        if (d.data.length < length)
+            d.data = new byte[length];
+        return d;
+    }
+
+    private void releaseDatagram(Datagram d) {
+        if (freeCount == freeDatagrams.length) {
+            Datagram[] grown = new Datagram[freeDatagrams.length * 2];
+            System.arraycopy(freeDatagrams, 0, grown, 0, freeCount);
+            freeDatagrams = grown;
+        }
+
+        d.target = null;
+        freeDatagrams[freeCount++] = d;
+    }
+
+    private void log(String event, Link link, int type) {
+        if (verbose)
+            System.out.println("NetworkEmulator: " + (link == forward ? "sender -> receiver " : "receiver -> sender ")
+                    + event + ", type " + type);
+    }
+
+    public static void main(String [ ] args) {
+
+        try {
+            // Check if the input format is valid, otherwise print usage description
+            if (args.length < 9) {
+               String str = "Usage:\n"
+                   + "\tjava NetworkEmulator | <arguments>\n\n"
+                   + "<arguments>, as for nEmulator:\n"
+                   + "\t<emulator's receiving UDP port number in the forward (sender) direction>\n"
+                   + "\t<receiver's network address>\n"
+                   + "\t<receiver's receiving UDP port number>\n"
+                   + "\t<emulator's receiving UDP port number in the backward (receiver) direction>\n"
+                   + "\t<sender's network address>\n"
+                   + "\t<sender's receiving UDP port number>\n"
+                   + "\t<maximum delay of the link in units of millisecond>\n"
+                   + "\t<packet discard probability>\n"
+                   + "\t<verbose-mode, 1 to print every datagram>\n\n"
+                   + "[options], for both directions:\n"
+                   + "\t-delay <ms>\tfixed delay, the maximum delay above is added as jitter (default 0)\n"
+                   + "\t-reorder <probability>\thold a datagram back by -reorderdelay ms (default 0)\n"
+                   + "\t-reorderdelay <ms>\t(default 5)\n"
+                   + "\t-duplicate <probability>\tdeliver a datagram twice (default 0)\n"
+                   + "\t-rate <bits/s>\tbandwidth of each direction, e.g. 10M (default unlimited)\n"
+                   + "\t-queue <datagrams>\tdatagrams waiting for the bandwidth before drops (default 1000)\n"
+                   + "\t-seed <n>\trandom seed, runs with the same seed drop the same datagrams (default 1)";
+               throw new RuntimeException(str);
+            }
+
+            int forwardPort = Integer.parseInt(args[0]);
+            InetSocketAddress receiver = new InetSocketAddress(InetAddress.getByName(args[1]), Integer.parseInt(args[2]));
+            int backwardPort = Integer.parseInt(args[3]);
+            InetSocketAddress sender = new InetSocketAddress(InetAddress.getByName(args[4]), Integer.parseInt(args[5]));
+
+            Link forward = new Link();
+            Link backward = new Link();
+            forward.jitter = backward.jitter = Long.parseLong(args[6]);
+            forward.loss = backward.loss = Double.parseDouble(args[7]);
+            boolean verbose = args[8].equals("1");
+            long seed = 1;
+
+            for (int i = 9; i < args.length; i++) {
+                if (i + 1 >= args.length)
+                    throw new RuntimeException("NetworkEmulator: Missing value of option " + args[i]);
+
+                String option = args[i];
+                String value = args[++i];
+
+                if (option.equals("-delay"))
+                    forward.delay = backward.delay = Long.parseLong(value);
+                else if (option.equals("-reorder"))
+                    forward.reorder = backward.reorder = Double.parseDouble(value);
+                else if (option.equals("-reorderdelay"))
+                    forward.reorderDelay = backward.reorderDelay = Long.parseLong(value);
+                else if (option.equals("-duplicate"))
+                    forward.duplicate = backward.duplicate = Double.parseDouble(value);
+                else if (option.equals("-rate"))
+                    forward.bitsPerSecond = backward.bitsPerSecond = parseRate(value);
+                else if (option.equals("-queue"))
+                    forward.queueLimit = backward.queueLimit = Integer.parseInt(value);
+                else if (option.equals("-seed"))
+                    seed = Long.parseLong(value);
+                else
+                    throw new RuntimeException("NetworkEmulator: Unknown option " + option);
+            }
+
+            new NetworkEmulator(forwardPort, receiver, backwardPort, sender, forward, backward, seed, verbose).run();
+
+        } catch (NumberFormatException ex) {
+            System.out.println("NetworkEmulator: Can't parse the given number: " + ex.getMessage());
+        } catch (RuntimeException ex) {
+            System.out.println(ex.getMessage());
+        } catch (IOException ex) {
+            System.out.println("NetworkEmulator: Could not open the UDP ports " + ex.getMessage());
+        }
+    }
+
+    // "<n>", "<n>k", "<n>M" or "<n>G" bits per second
+    private static long parseRate(String str) throws NumberFormatException {
+        long unit = 1;
+        char suffix = str.charAt(str.length() - 1);
+
+        if (suffix == 'k')
+            unit = 1000;
+        else if (suffix == 'M')
+            unit = 1000000;
+        else if (suffix == 'G')
+            unit = 1000000000;
+
+        if (unit > 1)
+            str = str.substring(0, str.length() - 1);
+
+        return (long) (Double.parseDouble(str) * unit);
+    }
+}
@@ -0,0 +1,101 @@
+// Pacer: token bucket that spreads the sender's datagrams out in time instead of sending a
+// window in one burst. Tokens are bytes and refill at the pacing rate: a fixed bit rate, or
+// the congestion window per smoothed RTT. A datagram may leave while the bucket is not in debt,
+// its bytes are taken afterwards, so the bucket never needs to know the next datagram's size.
+class Pacer {
+    private final double windowGain = 1.25;     // window pacing runs a bit faster than cwnd / RTT so ACKs keep the window full
+    private final long burstNanos = 2000000;    // the bucket holds 2 ms of sending, the senders wait in whole milliseconds
+
+    private final long fixedRate;               // bits/s, 0 to pace at the window per RTT
+    private final int datagramLength;           // largest datagram, the bucket holds at least two
+
+    private double rate = 0;                    // bytes per nanosecond, 0 until it is known
+    private double tokens;
+    private double capacity;
+    private long lastRefill = -1;
+
+    // statistics: bytes sent and the integral of the target rate over the time they took
+    private long firstSendTime = -1;
+    private long lastSendTime;
+    private long bytesSent = 0;
+    private double targetBytes = 0;
+
+    public Pacer(long bitsPerSecond, int largestDatagram) {
+        fixedRate = bitsPerSecond;
+        datagramLength = largestDatagram;
+
+        if (fixedRate > 0)
+            setRate(fixedRate / 8.0 / 1000000000.0);
+    }
+
+    public boolean pacesWindow() {
+        return fixedRate == 0;
+    }
+
+    // window pacing: the window of windowBytes should take one smoothed RTT
+    public synchronized void setWindowRate(long windowBytes, double smoothedRTTMillis) {
+        if (fixedRate == 0 && smoothedRTTMillis > 0)
+            setRate(windowGain * windowBytes / (smoothedRTTMillis * 1000000.0));
+    }
+
+    private void setRate(double bytesPerNanosecond) {
+        rate = bytesPerNanosecond;
+        capacity = Math.max(2.0 * datagramLength, rate * burstNanos);
+    }
+
+    // nanoseconds until the next datagram may be sent, 0 if it may go now
+    public synchronized long getNanosToWait(long now) {
+        // no RTT sample yet: nothing to pace at
+        if (rate == 0)
+            return 0;
+
+        if (lastRefill < 0)
+            tokens = capacity;
+        else
+            tokens = Math.min(capacity, tokens + rate * (now - lastRefill));
+        lastRefill = now;
+
+        return (tokens >= 0)? 0 : (long) Math.ceil(-tokens / rate);
+    }
+
+    // a datagram of the given length has been sent
+    public synchronized void onSent(int length, long now) {
+        tokens -= length;
+        bytesSent += length;
+
+        if (firstSendTime < 0)
+            firstSendTime = now;
+        else
+            targetBytes += rate * (now - lastSendTime);
+        lastSendTime = now;
+    }
+
+    // average bits/s actually sent and average target rate, over the time of the transfer
+    public synchronized double getAchievedRate() {
+        long nanos = lastSendTime - firstSendTime;
+        return (nanos > 0)? bytesSent * 8 * 1000000000.0 / nanos : 0;
+    }
+
+    public synchronized double getTargetRate() {
+        long nanos = lastSendTime - firstSendTime;
+        return (nanos > 0)? targetBytes * 8 * 1000000000.0 / nanos : 0;
+    }
+
+    // "<n>", "<n>k", "<n>M" or "<n>G" bits per second
+    public static long parseRate(String str) throws NumberFormatException {
+        long unit = 1;
+        char suffix = str.charAt(str.length() - 1);
+
+        if (suffix == 'k')
+            unit = 1000;
+        else if (suffix == 'M')
+            unit = 1000000;
+        else if (suffix == 'G')
+            unit = 1000000000;
+
+        if (unit > 1)
+            str = str.substring(0, str.length() - 1);
+
+        return (long) (Double.parseDouble(str) * unit);
+    }
+}
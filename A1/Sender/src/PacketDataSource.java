@@ -0,0 +1,23 @@
+import java.io.IOException;
+
+// PacketDataSource: where FileTransmitter reads the payloads of data packets from, the whole
+// file or one byte range of it. Every read but the last fills the whole length, so the receiver
+// can place packet n at n * payload size.
+interface PacketDataSource {
+    // read up to length bytes, -1 once the source is exhausted
+    int read(byte[] buffer, int offset, int length) throws IOException;
+
+    // position of the first byte of the source in the file
+    long offset();
+
+    // number of bytes the source delivers in total
+    long length();
+
+    // size of the whole file
+    long fileLength();
+
+    // leave out the next bytes of the range, called before the first read when resuming
+    void skip(long bytes) throws IOException;
+
+    void close() throws IOException;
+}
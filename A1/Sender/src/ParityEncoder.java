@@ -0,0 +1,115 @@
+import java.util.Arrays;
+
+// ParityEncoder: forward error correction (-fec). After every group of data packets the sender
+// sends a parity packet (type 5): the XOR of the group's payloads, so the receiver can rebuild
+// one lost packet of the group without waiting for a retransmission. A group is a power of two
+// of consecutive sequence numbers, starting at a multiple of its size; its parity carries the
+// first sequence number, and as payload the group size, the XOR of the payload lengths (4 bytes
+// each) and the XOR of the payloads. The last group before EOT may be shorter.
+// Adaptive groups are sized to the loss rate: about a quarter of a packet is lost per group.
+class ParityEncoder {
+    public static final int HeaderLength = 8;
+    public static final int MinGroupSize = 4;   // the receiver collects XORs per MinGroupSize packets
+    public static final int MaxGroupSize = 64;
+
+    private final double lossGain = 0.125;
+    private final double lossPerGroup = 0.25;
+
+    private final int fixedGroupSize;           // 0 for adaptive groups
+    private final packet parity;
+
+    private int groupStart;
+    private int groupSize;
+    private int count = 0;                      // packets of the group sent so far
+    private int maxLength;
+    private int lengthXor;
+
+    // loss rate: retransmitted and rebuilt packets per packet sent, sampled at every group start
+    private double lossRate = 0;
+    private long lastSent = 0;
+    private long lastLost = 0;
+
+    public ParityEncoder(int groupSize, int payloadSize) {
+        fixedGroupSize = groupSize;
+        parity = packet.createReusable(HeaderLength + payloadSize);
+        this.groupSize = (groupSize > 0)? groupSize : MaxGroupSize;
+    }
+
+    // the data packet seqNum has just been sent, sent and lost count the packets of the transfer
+    // so far. Returns the parity packet to send once the packet completes its group, else null.
+    public packet add(packet p, int seqNum, long sent, long lost) throws Exception {
+        if (count == 0) {
+            // packets before the first multiple of MinGroupSize go unprotected
+            if ((seqNum & (MinGroupSize - 1)) != 0)
+                return null;
+            startGroup(seqNum, sent, lost);
+        }
+
+        byte[] data = p.getDataArray();
+        byte[] parityData = parity.getDataArray();
+        int length = p.getLength();
+
+        for (int i = 0; i < length; i++)
+            parityData[HeaderLength + i] ^= data[i];
+
+        maxLength = Math.max(maxLength, length);
+        lengthXor ^= length;
+
+        return (++count == groupSize)? finishGroup() : null;
+    }
+
+    // parity of the packets of an unfinished group, sent before EOT; null if there are none
+    public packet flush() throws Exception {
+        return (count > 0)? finishGroup() : null;
+    }
+
+    // packets per parity packet of the current group
+    public int getGroupSize() {
+        return groupSize;
+    }
+
+    public double getLossRate() {
+        return lossRate;
+    }
+
+    private void startGroup(int seqNum, long sent, long lost) {
+        if (fixedGroupSize == 0) {
+            if (sent > lastSent)
+                lossRate += lossGain * ((lost - lastLost) / (double) (sent - lastSent) - lossRate);
+            lastSent = sent;
+            lastLost = lost;
+
+            int size = (lossRate > 0)? (int) Math.min(MaxGroupSize, lossPerGroup / lossRate) : MaxGroupSize;
+            groupSize = Math.max(MinGroupSize, Integer.highestOneBit(Math.max(1, size)));
+        } else {
+            groupSize = fixedGroupSize;
+        }
+
+        // a group starts at a multiple of its size
+        while ((seqNum & (groupSize - 1)) != 0)
+            groupSize >>= 1;
+
+        groupStart = seqNum;
+        maxLength = 0;
+        lengthXor = 0;
+        Arrays.fill(parity.getDataArray(), (byte) 0);
+    }
+
+    private packet finishGroup() throws Exception {
+        byte[] parityData = parity.getDataArray();
+
+        putInt(parityData, 0, count);
+        putInt(parityData, 4, lengthXor);
+        parity.set(5, groupStart, HeaderLength + maxLength, true);
+
+        count = 0;
+        return parity;
+    }
+
+    private static void putInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,152 @@
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// ReadAheadDataSource: reads another source ahead on a thread of its own (-readahead), in
+// chunks of chunkSize bytes kept in a fixed pool of buffers. The transmitting thread only copies
+// payloads out of chunks that are ready, so a disk read never holds it, nor the ACK thread
+// waiting for it, and waits only if the disk falls behind the network. The reader starts with the
+// first read, after a resumed transfer skipped what the receiver has.
+class ReadAheadDataSource implements PacketDataSource {
+    private final int chunkSize = 256 * 1024;
+
+    private final PacketDataSource source;
+    private final BlockingQueue<Chunk> freeChunks;
+    private final BlockingQueue<Chunk> readyChunks;
+    private Thread reader;                      // null until the first read
+
+    private Chunk current;                      // chunk payloads are copied from, null between chunks
+    private int position;
+    private boolean exhausted = false;
+    private long waits = 0;                     // reads that found no chunk ready
+
+    private static class Chunk {
+        final byte[] data;
+        int length;                             // -1 marks the end of the source
+        IOException failure;                    // set instead of data if the reader failed
+
+        Chunk(int size) {
+            data = new byte[size];
+        }
+    }
+
+    // readAhead bytes are read ahead at most, at least two chunks
+    public ReadAheadDataSource(PacketDataSource rawSource, long readAhead) {
+        source = rawSource;
+
+        int chunks = (int) Math.max(2, Math.min(readAhead / chunkSize, 1024));
+        freeChunks = new ArrayBlockingQueue<Chunk>(chunks);
+        readyChunks = new ArrayBlockingQueue<Chunk>(chunks);
+
+        // a source smaller than a chunk needs no more than its length
+        for (int i = 0; i < chunks; i++)
+            freeChunks.add(new Chunk((int) Math.min(chunkSize, Math.max(1, rawSource.length()))));
+    }
+
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (reader == null)
+            startReader();
+
+        int total = 0;
+
+        // fill the whole length across chunks, only the last read may be short
+        while (total < length && !exhausted) {
+            if (current == null && !takeChunk())
+                break;
+
+            int count = Math.min(length - total, current.length - position);
+            System.arraycopy(current.data, position, buffer, offset + total, count);
+            position += count;
+            total += count;
+
+            if (position == current.length) {
+                freeChunks.add(current);
+                current = null;
+            }
+        }
+
+        return (total == 0)? -1 : total;
+    }
+
+    // reads that had to wait for the reader thread
+    public long getWaits() {
+        return waits;
+    }
+
+    public void skip(long bytes) throws IOException {
+        if (reader != null)
+            throw new IOException("ReadAheadDataSource: skip after the first read");
+
+        source.skip(bytes);
+    }
+
+    public long offset() {
+        return source.offset();
+    }
+
+    public long length() {
+        return source.length();
+    }
+
+    public long fileLength() {
+        return source.fileLength();
+    }
+
+    public void close() throws IOException {
+        if (reader != null)
+            reader.interrupt();
+        source.close();
+    }
+
+    // the next chunk the reader filled, false at the end of the source
+    private boolean takeChunk() throws IOException {
+        Chunk chunk = readyChunks.poll();
+
+        if (chunk == null) {
+            waits++;
+            try {
+                chunk = readyChunks.take();
+            } catch (InterruptedException ex) {
+                throw new IOException("ReadAheadDataSource: interrupted while waiting for the disk");
+            }
+        }
+
+        if (chunk.failure != null)
+            throw chunk.failure;
+
+        if (chunk.length < 0) {
+            exhausted = true;
+            return false;
+        }
+
+        current = chunk;
+        position = 0;
+        return true;
+    }
+
+    private void startReader() {
+        reader = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        Chunk chunk = freeChunks.take();
+
+                        try {
+                            chunk.length = source.read(chunk.data, 0, chunk.data.length);
+                        } catch (IOException ex) {
+                            chunk.failure = ex;
+                        }
+
+                        readyChunks.put(chunk);
+                        if (chunk.length < 0 || chunk.failure != null)
+                            return;
+                    }
+                } catch (InterruptedException ex) {
+                    // the source is closed
+                }
+            }
+        }, "sender read-ahead");
+        reader.setDaemon(true);
+        reader.start();
+    }
+}
@@ -0,0 +1,43 @@
+// RenoCongestionControl: loss based, slow start below ssthresh, additive increase of one
+// packet per RTT above it, halves the window on duplicate ACKs and restarts from one packet
+// on timeout
+class RenoCongestionControl implements CongestionControl {
+    private final int maxWindow;
+
+    private double cwnd = 1;
+    private double ssthresh;
+
+    public RenoCongestionControl(int maxWindowSize) {
+        maxWindow = maxWindowSize;
+        ssthresh = maxWindowSize;
+    }
+
+    public synchronized int getWindow() {
+        return (int) Math.min(maxWindow, Math.max(1, cwnd));
+    }
+
+    public synchronized void onACK(int newlyAckedPackets, double rttMillis) {
+        for (int i = 0; i < newlyAckedPackets; i++) {
+            if (cwnd < ssthresh)
+                cwnd += 1;              // slow start: doubles every RTT
+            else
+                cwnd += 1 / cwnd;       // congestion avoidance: one packet per RTT
+        }
+
+        cwnd = Math.min(cwnd, maxWindow);
+    }
+
+    public synchronized void onDuplicateACKs() {
+        ssthresh = Math.max(cwnd / 2, 2);
+        cwnd = ssthresh;
+    }
+
+    public synchronized void onTimeout() {
+        ssthresh = Math.max(cwnd / 2, 2);
+        cwnd = 1;
+    }
+
+    public String getName() {
+        return "reno";
+    }
+}
@@ -0,0 +1,25 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// RetransmitBurstEvent: JFR event lasting while a run of packets is resent at once, after a
+// Go-Back-N timeout or enough duplicate ACKs
+@Name("sender.RetransmitBurst")
+@Label("Retransmit Burst")
+@Category("Transfer")
+@Description("Unacknowledged packets of the window resent in one go")
+class RetransmitBurstEvent extends Event {
+    @Label("Session")
+    int session;
+
+    @Label("Cause")
+    String cause;
+
+    @Label("First Sequence Number")
+    int firstSeqNum;
+
+    @Label("Packets")
+    int packets;
+}
@@ -0,0 +1,27 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+// RetransmitTimeoutEvent: JFR event of an expired retransmission timer, recorded when a flight
+// recording enables it (e.g. java -XX:StartFlightRecording ... sender)
+@Name("sender.RetransmitTimeout")
+@Label("Retransmit Timeout")
+@Category("Transfer")
+@Description("A retransmission timer expired before the packet was acknowledged")
+class RetransmitTimeoutEvent extends Event {
+    @Label("Session")
+    int session;
+
+    @Label("Sequence Number")
+    int seqNum;
+
+    @Label("RTO")
+    @Timespan(Timespan.MILLISECONDS)
+    long rto;
+
+    @Label("Packets In Flight")
+    int packetsInFlight;
+}
@@ -0,0 +1,69 @@
+// RttEstimator: smoothed round trip time and retransmission timeout of the sender,
+// computed as in RFC 6298 (Jacobson/Karels) with exponential backoff on timeout
+class RttEstimator {
+    private final double alpha = 0.125;         // gain of the smoothed RTT
+    private final double beta = 0.25;           // gain of the RTT variance
+
+    private final long clockGranularity;        // ms per tick of the retransmission timing wheel (-tick)
+    private final long initialRTO = 100;        // used until the first RTT sample arrives (ms)
+    private final long minRTO = 5;              // ms
+    private final long maxRTO = 60000;          // ms
+
+    private double lastRTT = -1;                // ms, -1 until the first sample
+    private double smoothedRTT = -1;            // ms
+    private double rttVariance = 0;             // ms
+
+    private long baseRTO = initialRTO;          // RTO computed from the estimates (ms)
+    private int backoffCount = 0;               // number of consecutive timeouts since the last sample
+
+    // a timer firing on ticks of tickMillis cannot tell apart RTOs closer than one tick
+    public RttEstimator(long tickMillis) {
+        clockGranularity = tickMillis;
+    }
+
+    // Add one RTT measurement. Callers must follow Karn's rule and only pass samples
+    // of packets that were transmitted exactly once.
+    public synchronized void addSample(long rttNanos) {
+        double rtt = rttNanos / 1000000.0;
+
+        if (smoothedRTT < 0) {
+            smoothedRTT = rtt;
+            rttVariance = rtt / 2;
+        } else {
+            rttVariance = (1 - beta) * rttVariance + beta * Math.abs(smoothedRTT - rtt);
+            smoothedRTT = (1 - alpha) * smoothedRTT + alpha * rtt;
+        }
+
+        lastRTT = rtt;
+        baseRTO = (long) Math.ceil(smoothedRTT + Math.max(clockGranularity, 4 * rttVariance));
+
+        // a valid sample ends the backoff
+        backoffCount = 0;
+    }
+
+    // retransmission timer expired: double the RTO until the next valid sample
+    public synchronized void backoff() {
+        if (getRTO() < maxRTO)
+            backoffCount++;
+    }
+
+    // current retransmission timeout in milliseconds
+    public synchronized long getRTO() {
+        long rto = Math.max(minRTO, baseRTO) << backoffCount;
+        return Math.min(maxRTO, rto);
+    }
+
+    // most recent RTT sample in milliseconds, -1 if there is none yet
+    public synchronized double getLastRTT() {
+        return lastRTT;
+    }
+
+    // smoothed RTT in milliseconds, -1 if there is no sample yet
+    public synchronized double getSmoothedRTT() {
+        return smoothedRTT;
+    }
+
+    public synchronized double getRTTVariance() {
+        return rttVariance;
+    }
+}
@@ -0,0 +1,141 @@
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// SendWindow: the packets sent but not yet acknowledged, in a ring of reusable packet slots
+// indexed by sequence number (seqNum & mask). The ring holds a power of two of slots, at least
+// the largest window, so the packets from base to nextSeqNum never share a slot and a slot is
+// only refilled once its previous packet has been acknowledged.
+//
+// One thread sends (the producer: fills the slot at nextSeqNum and publishes it by moving
+// nextSeqNum), one thread handles ACKs (the consumer: acknowledges slots and moves base). Both
+// bounds are volatile and written by their own thread only, so either side and the timer
+// threads read them without a lock, and looking up a packet neither locks nor allocates.
+class SendWindow {
+    private final int mask;
+    private final int payloadSize;
+
+    private final packet[] packets;             // created by the producer on first use, then refilled
+    private final AtomicIntegerArray inFlight;  // 1 while the packet of the slot is unacknowledged
+    private final AtomicLongArray sendTimes;    // ns of the first transmission, -1 once retransmitted
+
+    private volatile int base = 0;              // written by the consumer only
+    private volatile int nextSeqNum = 0;        // written by the producer only
+
+    public SendWindow(int maxWindowSize, int payloadLength) {
+        this(maxWindowSize, payloadLength, 0);
+    }
+
+    // a window whose first packet is firstSeqNum, e.g. right before the sequence numbers wrap
+    SendWindow(int maxWindowSize, int payloadLength, int firstSeqNum) {
+        int slots = Integer.highestOneBit(Math.max(1, maxWindowSize));
+        if (slots < maxWindowSize)
+            slots <<= 1;
+
+        mask = slots - 1;
+        payloadSize = payloadLength;
+
+        packets = new packet[slots];
+        inFlight = new AtomicIntegerArray(slots);
+        sendTimes = new AtomicLongArray(slots);
+
+        base = firstSeqNum;
+        nextSeqNum = firstSeqNum;
+    }
+
+    public int getBase() {
+        return base;
+    }
+
+    public int getNextSeqNum() {
+        return nextSeqNum;
+    }
+
+    // packets from base to nextSeqNum
+    public int size() {
+        return nextSeqNum - base;
+    }
+
+    public boolean isEmpty() {
+        return base == nextSeqNum;
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    // producer: the packet to fill for nextSeqNum, null while the window is full
+    public packet nextSlot() {
+        int seqNum = nextSeqNum;
+        if (seqNum - base > mask)
+            return null;
+
+        int slot = seqNum & mask;
+        if (packets[slot] == null)
+            packets[slot] = packet.createReusable(payloadSize);
+        return packets[slot];
+    }
+
+    // producer: the slot filled by nextSlot() is about to be sent at sendTime. Moving nextSeqNum
+    // makes it visible to the consumer, before it is sent so no ACK can arrive ahead of it.
+    public void publish(long sendTime) {
+        int slot = nextSeqNum & mask;
+
+        sendTimes.set(slot, sendTime);
+        inFlight.set(slot, 1);
+        nextSeqNum = nextSeqNum + 1;
+    }
+
+    // the unacknowledged packet seqNum, null if it has been acknowledged or is outside the window
+    public packet get(int seqNum) {
+        if (seqNum - base < 0 || seqNum - nextSeqNum >= 0)
+            return null;
+
+        int slot = seqNum & mask;
+        return (inFlight.get(slot) != 0)? packets[slot] : null;
+    }
+
+    public boolean isUnacknowledged(int seqNum) {
+        return get(seqNum) != null;
+    }
+
+    // consumer: the packet left the network, returns it unless it had been acknowledged already.
+    // The slot keeps the packet for the sequence number that reuses it.
+    public packet acknowledge(int seqNum) {
+        if (seqNum - base < 0 || seqNum - nextSeqNum >= 0)
+            return null;
+
+        int slot = seqNum & mask;
+        return (inFlight.getAndSet(slot, 0) != 0)? packets[slot] : null;
+    }
+
+    // consumer: everything below newBase has been acknowledged
+    public void setBase(int newBase) {
+        base = newBase;
+    }
+
+    // consumer: move base up to the oldest unacknowledged packet, returns the new base
+    public int advanceBase() {
+        int newBase = base;
+        int next = nextSeqNum;
+
+        while (newBase != next && inFlight.get(newBase & mask) == 0)
+            newBase++;
+
+        base = newBase;
+        return newBase;
+    }
+
+    // ns when the unacknowledged packet was sent, -1 if it has been retransmitted since (Karn's rule)
+    public long getSendTime(int seqNum) {
+        if (get(seqNum) == null)
+            return -1;
+
+        return sendTimes.get(seqNum & mask);
+    }
+
+    public void clearSendTime(int seqNum) {
+        // a slot reused by a newer packet keeps its time
+        if (get(seqNum) != null)
+            sendTimes.set(seqNum & mask, -1);
+    }
+}
@@ -0,0 +1,191 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// SenderMetrics: counters of one transfer, updated by the sender's threads as it runs and read
+// at any time through JMX, next to the statistics printed at the end. Counters are atomic or
+// volatile, so reading them never takes the sender's locks.
+class SenderMetrics implements SenderMetricsMBean {
+    private final String name;
+    private final RttEstimator rttEstimator;
+    private final long startTime = System.nanoTime();
+    private volatile long finishTime = -1;
+    private ObjectName objectName;              // null unless registered
+
+    final AtomicLong bytesAcknowledged = new AtomicLong();
+    final AtomicLong packetsSent = new AtomicLong();
+    final AtomicLong packetsRetransmitted = new AtomicLong();
+    final AtomicLong packetsFastRetransmitted = new AtomicLong();
+    final AtomicLong duplicateACKs = new AtomicLong();
+    final AtomicLong timeouts = new AtomicLong();
+    final AtomicLong parityPacketsSent = new AtomicLong();
+    final AtomicLong packetsRebuilt = new AtomicLong();
+    final Histogram rttMicros = new Histogram();
+
+    // window gauges, written with the sender's mux held
+    private volatile int windowSize = 0;
+    private volatile int packetsInFlight = 0;
+    private final AtomicLong inFlightSum = new AtomicLong();
+    private final AtomicLong windowSum = new AtomicLong();
+
+    private final AtomicLong blockedNanos = new AtomicLong();
+    private final AtomicLong blockedWaits = new AtomicLong();
+
+    public SenderMetrics(String transferName, RttEstimator estimator) {
+        name = transferName;
+        rttEstimator = estimator;
+    }
+
+    // make the transfer visible to JMX clients until unregister()
+    public void register(int sessionId) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName("sender:type=Transfer,session=" + sessionId);
+            server.registerMBean(this, objectName);
+        } catch (JMException ex) {
+            objectName = null;
+            System.out.println("sender: Could not register the transfer metrics: " + ex.getMessage());
+        }
+    }
+
+    public void unregister() {
+        if (objectName == null)
+            return;
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException ex) {
+            System.out.println("sender: Could not unregister the transfer metrics: " + ex.getMessage());
+        }
+        objectName = null;
+    }
+
+    public void finish() {
+        finishTime = System.nanoTime();
+    }
+
+    // a fresh packet has been sent, called with the sender's mux held
+    public void onPacketSent(int inFlight, int window) {
+        packetsSent.incrementAndGet();
+        setWindow(inFlight, window);
+
+        inFlightSum.addAndGet(inFlight);
+        windowSum.addAndGet(window);
+    }
+
+    public void setWindow(int inFlight, int window) {
+        packetsInFlight = inFlight;
+        windowSize = window;
+    }
+
+    public void onBlocked(long nanos) {
+        blockedNanos.addAndGet(nanos);
+        blockedWaits.incrementAndGet();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getElapsedMillis() {
+        long end = (finishTime < 0)? System.nanoTime() : finishTime;
+        return (end - startTime) / 1000000;
+    }
+
+    public long getBytesAcknowledged() {
+        return bytesAcknowledged.get();
+    }
+
+    public double getGoodputMbps() {
+        long millis = getElapsedMillis();
+        return (millis > 0)? bytesAcknowledged.get() * 8 / 1000.0 / millis : 0;
+    }
+
+    public long getPacketsSent() {
+        return packetsSent.get();
+    }
+
+    public long getPacketsRetransmitted() {
+        return packetsRetransmitted.get();
+    }
+
+    public long getPacketsFastRetransmitted() {
+        return packetsFastRetransmitted.get();
+    }
+
+    public double getRetransmitRatio() {
+        long sent = packetsSent.get();
+        return (sent > 0)? packetsRetransmitted.get() / (double) sent : 0;
+    }
+
+    public long getDuplicateACKs() {
+        return duplicateACKs.get();
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    public long getParityPacketsSent() {
+        return parityPacketsSent.get();
+    }
+
+    public long getPacketsRebuilt() {
+        return packetsRebuilt.get();
+    }
+
+    public long getRTTSamples() {
+        return rttMicros.getCount();
+    }
+
+    public double getRTTMeanMillis() {
+        return rttMicros.getMean() / 1000;
+    }
+
+    public double getRTT50thPercentileMillis() {
+        return rttMicros.getPercentile(0.5) / 1000;
+    }
+
+    public double getRTT90thPercentileMillis() {
+        return rttMicros.getPercentile(0.9) / 1000;
+    }
+
+    public double getRTT99thPercentileMillis() {
+        return rttMicros.getPercentile(0.99) / 1000;
+    }
+
+    public long[] getRTTHistogram() {
+        return rttMicros.getBuckets();
+    }
+
+    public double getSmoothedRTTMillis() {
+        return rttEstimator.getSmoothedRTT();
+    }
+
+    public long getRTOMillis() {
+        return rttEstimator.getRTO();
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public int getPacketsInFlight() {
+        return packetsInFlight;
+    }
+
+    public double getMeanWindowOccupancy() {
+        long window = windowSum.get();
+        return (window > 0)? inFlightSum.get() / (double) window : 0;
+    }
+
+    public long getBlockedMillis() {
+        return blockedNanos.get() / 1000000;
+    }
+
+    public long getBlockedWaits() {
+        return blockedWaits.get();
+    }
+}
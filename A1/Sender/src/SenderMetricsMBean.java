@@ -0,0 +1,60 @@
+// SenderMetricsMBean: live attributes of one transfer, read by jconsole or any JMX client
+// under sender:type=Transfer,session=<id>
+public interface SenderMetricsMBean {
+    String getName();
+
+    long getElapsedMillis();
+
+    // payload of the packets acknowledged so far, and its rate since the transfer started
+    long getBytesAcknowledged();
+
+    double getGoodputMbps();
+
+    long getPacketsSent();
+
+    long getPacketsRetransmitted();
+
+    long getPacketsFastRetransmitted();
+
+    // retransmissions per first transmission
+    double getRetransmitRatio();
+
+    long getDuplicateACKs();
+
+    long getTimeouts();
+
+    // -fec: parity packets sent and lost packets the receiver rebuilt from them
+    long getParityPacketsSent();
+
+    long getPacketsRebuilt();
+
+    // RTT samples: count, mean and percentiles in milliseconds, and the sample count per bucket:
+    // bucket i holds samples from 2^i to 2^(i+1) microseconds
+    long getRTTSamples();
+
+    double getRTTMeanMillis();
+
+    double getRTT50thPercentileMillis();
+
+    double getRTT90thPercentileMillis();
+
+    double getRTT99thPercentileMillis();
+
+    long[] getRTTHistogram();
+
+    double getSmoothedRTTMillis();
+
+    long getRTOMillis();
+
+    int getWindowSize();
+
+    int getPacketsInFlight();
+
+    // packets in flight per window size, averaged over every fresh packet sent
+    double getMeanWindowOccupancy();
+
+    // time the sending thread waited for the window, the pacer or an ACK
+    long getBlockedMillis();
+
+    long getBlockedWaits();
+}
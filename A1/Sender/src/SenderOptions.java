@@ -0,0 +1,175 @@
+import java.util.Random;
+
+// SenderOptions: optional command line arguments of the sender, given after the four
+// required ones as "-name value" pairs
+class SenderOptions {
+    boolean selectiveRepeat = false;            // -mode <gbn|sr>
+    String congestionControlName = "reno";      // -cc <reno|vegas|fixed>
+    boolean wideSeqNum = false;                 // -seqnum <mod32|32bit>
+    boolean eventLoop = false;                  // -engine <threads|nio>
+    boolean mappedFile = false;                 // -io <stream|mmap>
+    long readAhead = 0;                         // -readahead <off|bytes>, 0 for off
+    int streams = 1;                            // -streams <n>
+    int sessionId = new Random().nextInt(Integer.MAX_VALUE);    // -session <id>, stream i uses id + i
+    boolean sack = false;                       // -sack <off|on>
+    int duplicateACKThreshold = 3;              // -dupacks <n>
+    long timerTick = 1;                         // -tick <ms>
+    int payloadSize = packet.DefaultDataLength; // -payload <bytes>
+    long paceRate = -1;                         // -pace <off|rtt|bits/s>: -1 off, 0 window per RTT
+    boolean jmxMetrics = true;                  // -jmx <on|off>
+    boolean compress = false;                   // -compress <off|on>
+    boolean resume = false;                     // -resume <off|on>
+    int fecGroupSize = -1;                      // -fec <off|adaptive|packets>: -1 off, 0 adaptive
+
+    static final String usage = "[options]:\n"
+            + "\t-mode <gbn|sr>\tGo-Back-N (default) or Selective Repeat, announced to the receiver in the SETUP handshake\n"
+            + "\t-cc <reno|vegas|fixed>\tcongestion control: loss based (default), delay based or a fixed window of 10\n"
+            + "\t-seqnum <mod32|32bit>\tsequence numbers modulo 32 (default) or 32-bit, negotiated with the receiver\n"
+            + "\t-engine <threads|nio>\ttransmit, ACK and timer threads (default) or one NIO event loop thread\n"
+            + "\t-io <stream|mmap>\tread the file with a FileInputStream (default) or memory mapped\n"
+            + "\t-readahead <off|bytes>\tread the file ahead on a thread of its own, up to n bytes, e.g. 4M (default off)\n"
+            + "\t-streams <n>\tsend n byte ranges in parallel, stream i uses both UDP ports + i (default 1)\n"
+            + "\t-session <id>\tsession ID of the transfer, tells it apart at a ReceiverServer (default random)\n"
+            + "\t-sack <off|on>\tGo-Back-N: ask the receiver for selective acknowledgements, negotiated (default off)\n"
+            + "\t-dupacks <n>\tfast retransmit after n duplicate ACKs, 0 waits for the timeout (default 3)\n"
+            + "\t-tick <ms>\ttick of the retransmission timing wheel, timeouts are rounded up to it (default 1)\n"
+            + "\t-payload <bytes>\tpayload of a data packet, up to " + packet.MaxDataLength + ", larger than "
+            + packet.DefaultDataLength + " is negotiated with the receiver (default " + packet.DefaultDataLength + ")\n"
+            + "\t-pace <off|rtt|bits/s>\tsend as fast as the window allows (default), spread the window over the RTT,\n"
+            + "\t\t\tor cap the rate, e.g. 20M; retransmissions are paced too\n"
+            + "\t-compress <off|on>\tdeflate the file in blocks, blocks that do not shrink are sent raw, negotiated (default off)\n"
+            + "\t-fec <off|adaptive|packets>\tsend a parity packet per group of 4 to 64 packets (a power of two), sized\n"
+            + "\t\t\tto the loss rate or fixed; needs -seqnum 32bit and -mode sr or -sack on, negotiated (default off)\n"
+            + "\t-resume <off|on>\tcontinue behind the bytes a receiver with -resume on has on disk already (default off)\n"
+            + "\t-jmx <on|off>\tshow the transfer's counters as the MBean sender:type=Transfer,session=<id> (default on)";
+
+    public static SenderOptions parse(String[] args, int first) throws RuntimeException {
+        SenderOptions options = new SenderOptions();
+
+        for (int i = first; i < args.length; i++) {
+            if (i + 1 >= args.length)
+                throw new RuntimeException("sender: Missing value of option " + args[i]);
+
+            String name = args[i];
+            String value = args[++i];
+
+            if (name.equals("-mode")) {
+                if (value.equals("sr"))
+                    options.selectiveRepeat = true;
+                else if (!value.equals("gbn"))
+                    throw new RuntimeException("sender: Unknown mode " + value);
+            } else if (name.equals("-cc")) {
+                options.congestionControlName = value;
+            } else if (name.equals("-seqnum")) {
+                if (value.equals(TransferSetup.SeqNum32Bit))
+                    options.wideSeqNum = true;
+                else if (!value.equals(TransferSetup.SeqNumModulo32))
+                    throw new RuntimeException("sender: Unknown sequence number format " + value);
+            } else if (name.equals("-engine")) {
+                if (value.equals("nio"))
+                    options.eventLoop = true;
+                else if (!value.equals("threads"))
+                    throw new RuntimeException("sender: Unknown engine " + value);
+            } else if (name.equals("-io")) {
+                if (value.equals("mmap"))
+                    options.mappedFile = true;
+                else if (!value.equals("stream"))
+                    throw new RuntimeException("sender: Unknown file I/O " + value);
+            } else if (name.equals("-readahead")) {
+                options.readAhead = value.equals("off")? 0 : parseSize(value);
+
+                if (options.readAhead < 0)
+                    throw new RuntimeException("sender: Read-ahead must not be negative");
+            } else if (name.equals("-streams")) {
+                options.streams = Integer.parseInt(value);
+                if (options.streams <= 0)
+                    throw new RuntimeException("sender: Number of streams must be positive");
+            } else if (name.equals("-session")) {
+                options.sessionId = Integer.parseInt(value);
+            } else if (name.equals("-dupacks")) {
+                options.duplicateACKThreshold = Integer.parseInt(value);
+                if (options.duplicateACKThreshold < 0)
+                    throw new RuntimeException("sender: Duplicate ACK threshold must not be negative");
+            } else if (name.equals("-payload")) {
+                options.payloadSize = Integer.parseInt(value);
+                if (options.payloadSize <= 0 || options.payloadSize > packet.MaxDataLength)
+                    throw new RuntimeException("sender: Payload must be between 1 and " + packet.MaxDataLength + " bytes");
+            } else if (name.equals("-pace")) {
+                if (value.equals("off"))
+                    options.paceRate = -1;
+                else if (value.equals("rtt"))
+                    options.paceRate = 0;
+                else if ((options.paceRate = Pacer.parseRate(value)) <= 0)
+                    throw new RuntimeException("sender: Pacing rate must be positive");
+            } else if (name.equals("-tick")) {
+                options.timerTick = Long.parseLong(value);
+                if (options.timerTick <= 0)
+                    throw new RuntimeException("sender: Timer tick must be positive");
+            } else if (name.equals("-compress")) {
+                if (value.equals("on"))
+                    options.compress = true;
+                else if (!value.equals("off"))
+                    throw new RuntimeException("sender: Unknown compression setting " + value);
+            } else if (name.equals("-fec")) {
+                if (value.equals("off"))
+                    options.fecGroupSize = -1;
+                else if (value.equals("adaptive"))
+                    options.fecGroupSize = 0;
+                else if ((options.fecGroupSize = Integer.parseInt(value)) < ParityEncoder.MinGroupSize
+                        || options.fecGroupSize > ParityEncoder.MaxGroupSize
+                        || Integer.bitCount(options.fecGroupSize) != 1)
+                    throw new RuntimeException("sender: FEC group must be a power of two from "
+                            + ParityEncoder.MinGroupSize + " to " + ParityEncoder.MaxGroupSize + " packets");
+            } else if (name.equals("-resume")) {
+                if (value.equals("on"))
+                    options.resume = true;
+                else if (!value.equals("off"))
+                    throw new RuntimeException("sender: Unknown resume setting " + value);
+            } else if (name.equals("-jmx")) {
+                if (value.equals("off"))
+                    options.jmxMetrics = false;
+                else if (!value.equals("on"))
+                    throw new RuntimeException("sender: Unknown JMX setting " + value);
+            } else if (name.equals("-sack")) {
+                if (value.equals("on"))
+                    options.sack = true;
+                else if (!value.equals("off"))
+                    throw new RuntimeException("sender: Unknown SACK setting " + value);
+            } else {
+                throw new RuntimeException("sender: Unknown option " + name);
+            }
+        }
+
+        // Selective Repeat acknowledges every packet on its own already
+        if (options.sack && options.selectiveRepeat)
+            throw new RuntimeException("sender: -sack on needs -mode gbn");
+
+        // a rebuilt packet is of no use to a receiver that dropped the packets after the loss
+        if (options.fecGroupSize >= 0 && (!options.wideSeqNum || !(options.selectiveRepeat || options.sack)))
+            throw new RuntimeException("sender: -fec needs -seqnum 32bit and -mode sr or -sack on");
+
+        if (options.fecGroupSize >= 0 && options.payloadSize > packet.MaxDataLength - ParityEncoder.HeaderLength)
+            throw new RuntimeException("sender: -fec needs a payload of at most "
+                    + (packet.MaxDataLength - ParityEncoder.HeaderLength) + " bytes");
+
+        return options;
+    }
+
+    // bytes with an optional binary suffix, e.g. 512k or 4M
+    private static long parseSize(String str) throws NumberFormatException {
+        long unit = 1;
+        char suffix = str.charAt(str.length() - 1);
+
+        if (suffix == 'k')
+            unit = 1024;
+        else if (suffix == 'M')
+            unit = 1024 * 1024;
+        else if (suffix == 'G')
+            unit = 1024 * 1024 * 1024;
+
+        if (unit > 1)
+            str = str.substring(0, str.length() - 1);
+
+        return Long.parseLong(str) * unit;
+    }
+}
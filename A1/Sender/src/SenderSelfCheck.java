@@ -0,0 +1,287 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// SenderSelfCheck: quick checks of the sender's own logic that a loopback transfer rarely
+// reaches: the packet codec, sequence numbers wrapping around in the send window and in
+// unwrapSeqNum, SETUP parameters, the timing wheel, the parity format and when duplicate ACKs
+// trigger a fast retransmit. Runs without a network, prints one line per group of checks and
+// exits with status 1 at the first failure.
+public class SenderSelfCheck {
+    private int checks = 0;
+
+    private void check(boolean condition, String what) {
+        checks++;
+        if (!condition)
+            throw new RuntimeException("SenderSelfCheck: failed: " + what);
+    }
+
+    // a payload of length bytes that differs from packet to packet
+    private static void fill(packet p, int seed, int length) {
+        byte[] data = p.getDataArray();
+        for (int i = 0; i < length; i++)
+            data[i] = (byte) (seed * 31 + i);
+    }
+
+    private void checkPacketCodec() throws Exception {
+        int[] seqNums = { 0, 31, 32, Integer.MAX_VALUE, Integer.MIN_VALUE, -1 };
+        ByteBuffer buffer = ByteBuffer.allocate(packet.MaxPacketLength);
+        packet sent = packet.createReusable(100);
+        packet parsed = packet.createReusable(100);
+
+        for (int i = 0; i < seqNums.length; i++) {
+            fill(sent, i, 100 - i);
+            sent.set(1, seqNums[i], 100 - i, true);
+            sent.setSessionId(1000 + i);
+
+            buffer.clear();
+            sent.encode(buffer);
+            buffer.flip();
+            check(buffer.remaining() == sent.getEncodedLength(), "encoded length of packet " + seqNums[i]);
+
+            packet.parseUDPdata(buffer, parsed);
+            check(parsed.getType() == 1 && parsed.getSeqNum() == seqNums[i] && parsed.getLength() == 100 - i
+                    && parsed.getSessionId() == 1000 + i, "header of packet " + seqNums[i]);
+            for (int j = 0; j < parsed.getLength(); j++)
+                check(parsed.getDataArray()[j] == sent.getDataArray()[j], "payload of packet " + seqNums[i]);
+        }
+
+        // modulo 32 sequence numbers are reduced on the way out
+        sent.set(0, 77, 0, false);
+        check(sent.getSeqNum() == 77 % 32, "reduced sequence number of an ACK");
+
+        // a length beyond the buffer is rejected instead of read past it
+        buffer.clear();
+        buffer.putInt(1).putInt(0).putInt(500).putInt(0).flip();
+        boolean rejected = false;
+        try {
+            packet.parseUDPdata(buffer, parsed);
+        } catch (Exception ex) {
+            rejected = true;
+        }
+        check(rejected, "truncated datagram rejected");
+
+        System.out.println("SenderSelfCheck: packet codec ok");
+    }
+
+    private void checkUnwrapSeqNum() {
+        int[] nextSeqNums = { 0, 1, 31, 32, 1000, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE + 5, -1 };
+
+        for (int i = 0; i < nextSeqNums.length; i++) {
+            for (int k = 0; k < 32; k++) {
+                int seqNum = nextSeqNums[i] - 32 + k;
+
+                // the packet carries seqNum % 32 as packet.set reduces it, negative for negative numbers
+                int unwrapped = sender.unwrapSeqNum(seqNum % 32, nextSeqNums[i], 32);
+                check(unwrapped == seqNum, "unwrapSeqNum of " + seqNum + " below " + nextSeqNums[i] + " gave " + unwrapped);
+            }
+        }
+
+        System.out.println("SenderSelfCheck: sequence number unwrapping ok");
+    }
+
+    private void checkSendWindowWrap() {
+        int windowSize = 8;
+        SendWindow window = new SendWindow(windowSize, 16, Integer.MAX_VALUE - 20);
+        check(window.getCapacity() == windowSize, "ring capacity");
+
+        for (int round = 0; round < 8; round++) {
+            int base = window.getBase();
+
+            // fill the window, the ring has no room for one more
+            while (window.nextSlot() != null)
+                window.publish(round);
+            check(window.size() == windowSize && window.getNextSeqNum() == base + windowSize, "full window at " + base);
+            check(window.get(base + windowSize) == null && window.get(base - 1) == null, "packets outside the window at " + base);
+
+            // an ACK above base leaves base where it is, a repeated one returns nothing
+            check(window.acknowledge(base + 1) != null, "ACK of " + (base + 1));
+            check(window.acknowledge(base + 1) == null, "repeated ACK of " + (base + 1));
+            check(window.advanceBase() == base, "base held by the unacknowledged " + base);
+
+            // Karn's rule: a retransmitted packet gives no RTT sample
+            check(window.getSendTime(base) == round, "send time of " + base);
+            window.clearSendTime(base);
+            check(window.getSendTime(base) == -1, "cleared send time of " + base);
+
+            // acknowledging base moves it over the packets acknowledged before
+            check(window.acknowledge(base) != null, "ACK of " + base);
+            check(window.advanceBase() == base + 2, "base after the ACK of " + base);
+
+            for (int seqNum = base + 2; seqNum != base + windowSize; seqNum++)
+                check(window.acknowledge(seqNum) != null, "ACK of " + seqNum);
+            check(window.advanceBase() == base + windowSize && window.isEmpty(), "empty window after " + base);
+        }
+
+        check(window.getBase() - (Integer.MAX_VALUE - 20) == 8 * windowSize && window.getBase() < 0, "window moved across the wrap");
+
+        System.out.println("SenderSelfCheck: send window wrap-around ok");
+    }
+
+    private void checkTransferSetup() throws Exception {
+        TransferSetup setup = new TransferSetup();
+        setup.set(TransferSetup.SeqNumFormat, TransferSetup.SeqNum32Bit);
+        setup.set(TransferSetup.ReceiveWindow, 8192);
+        setup.set(TransferSetup.FileSize, Long.toString(5000000000L));
+
+        TransferSetup parsed = TransferSetup.parse(setup.toString());
+        check(parsed.get(TransferSetup.SeqNumFormat).equals(TransferSetup.SeqNum32Bit), "seqnum of " + setup);
+        check(parsed.getInt(TransferSetup.ReceiveWindow, 0) == 8192, "window of " + setup);
+        check(parsed.getLong(TransferSetup.FileSize, 0) == 5000000000L, "file size of " + setup);
+        check(parsed.get(TransferSetup.SACK, "off").equals("off"), "default of a missing parameter");
+        check(TransferSetup.parse("").toString().length() == 0, "empty setup");
+
+        boolean rejected = false;
+        try {
+            TransferSetup.parse("seqnum=32bit;window");
+        } catch (Exception ex) {
+            rejected = true;
+        }
+        check(rejected, "malformed setup rejected");
+
+        System.out.println("SenderSelfCheck: transfer setup ok");
+    }
+
+    private void checkTimingWheel() throws Exception {
+        final List<Integer> expired = new ArrayList<Integer>();
+        TimingWheel.TimeoutHandler handler = new TimingWheel.TimeoutHandler() {
+            public void onTimeout(int key) {
+                expired.add(key);
+            }
+        };
+
+        // eight 1 ms slots, expired by hand instead of the ticker thread
+        TimingWheel wheel = new TimingWheel(1, 8);
+        TimingWheel.Timeout first = new TimingWheel.Timeout(handler);
+        TimingWheel.Timeout cancelled = new TimingWheel.Timeout(handler);
+        TimingWheel.Timeout later = new TimingWheel.Timeout(handler);
+
+        check(wheel.getNanosToNextTick(System.nanoTime()) == -1, "idle wheel");
+
+        wheel.schedule(first, 1, 2);
+        wheel.schedule(cancelled, 2, 2);
+        wheel.schedule(later, 3, 40);              // several rounds of the wheel
+        wheel.cancel(cancelled);
+        wheel.schedule(first, 4, 2);               // rescheduled with a new key
+
+        Thread.sleep(15);
+        wheel.expireTimeouts(System.nanoTime());
+        check(expired.size() == 1 && expired.get(0) == 4, "expired after 15 ms: " + expired);
+
+        Thread.sleep(40);
+        wheel.expireTimeouts(System.nanoTime());
+        check(expired.size() == 2 && expired.get(1) == 3, "expired after 55 ms: " + expired);
+        check(wheel.getNanosToNextTick(System.nanoTime()) == -1, "wheel idle again");
+
+        System.out.println("SenderSelfCheck: timing wheel ok");
+    }
+
+    private void checkParityEncoder() throws Exception {
+        int groupSize = 4;
+        ParityEncoder encoder = new ParityEncoder(groupSize, 16);
+        byte[] xor = new byte[16];
+        int lengthXor = 0;
+        packet parity = null;
+
+        for (int i = 0; i < groupSize; i++) {
+            packet p = packet.createReusable(16);
+            fill(p, i, 16 - i);
+            p.set(1, 8 + i, 16 - i, true);
+
+            for (int j = 0; j < p.getLength(); j++)
+                xor[j] ^= p.getDataArray()[j];
+            lengthXor ^= p.getLength();
+
+            parity = encoder.add(p, 8 + i, 8 + i, 0);
+            check((parity != null) == (i == groupSize - 1), "parity only after the last packet of the group");
+        }
+
+        ByteBuffer header = ByteBuffer.wrap(parity.getDataArray());
+        check(parity.getType() == 5 && parity.getSeqNum() == 8, "parity header");
+        check(header.getInt(0) == groupSize && header.getInt(4) == lengthXor, "group size and length XOR");
+        check(parity.getLength() == ParityEncoder.HeaderLength + 16, "parity length of the longest payload");
+        for (int j = 0; j < 16; j++)
+            check(parity.getDataArray()[ParityEncoder.HeaderLength + j] == xor[j], "payload XOR byte " + j);
+
+        check(encoder.flush() == null, "nothing left to flush after a full group");
+
+        System.out.println("SenderSelfCheck: parity encoder ok");
+    }
+
+    private void checkFastRetransmitThreshold() {
+        DuplicateACKCounter duplicateACKs = new DuplicateACKCounter(3);
+        int base = 100;
+
+        // duplicates interrupted by new ACKs never add up to a loss
+        for (int round = 0; round < 5; round++) {
+            check(!duplicateACKs.onDuplicateACK(base, 0) && !duplicateACKs.onDuplicateACK(base, 0), "two duplicates of " + base);
+            duplicateACKs.reset();
+            base++;
+        }
+
+        // with parity the receiver gets a few more packets to rebuild the lost one from
+        for (int i = 1; i < 6; i++)
+            check(!duplicateACKs.onDuplicateACK(base, 3), "duplicate " + i + " waiting for parity");
+        check(duplicateACKs.onDuplicateACK(base, 3), "sixth duplicate with parity resends");
+
+        // one fast retransmit per loss, the following duplicates are left to fast recovery
+        for (int i = 0; i < 20; i++)
+            check(!duplicateACKs.onDuplicateACK(base, 3), "duplicate " + (i + 7) + " of the same loss");
+
+        System.out.println("SenderSelfCheck: fast retransmit threshold ok");
+    }
+
+    private void checkRecoverAfterResend() {
+        DuplicateACKCounter duplicateACKs = new DuplicateACKCounter(3);
+        int base = Integer.MAX_VALUE - 4;
+        int nextSeqNum = base + 10;
+
+        // the third duplicate of a loss at base resends the window, once
+        check(!duplicateACKs.onDuplicateACK(base, 0) && !duplicateACKs.onDuplicateACK(base, 0), "first duplicates");
+        check(duplicateACKs.onDuplicateACK(base, 0), "third duplicate resends");
+        check(!duplicateACKs.onDuplicateACK(base, 0), "fourth duplicate");
+        duplicateACKs.onResent(nextSeqNum);
+
+        // every resent packet the receiver had already is answered with one more duplicate
+        for (int i = 0; i < 20; i++)
+            check(!duplicateACKs.onDuplicateACK(base, 0), "duplicate " + i + " after the resend");
+
+        // partial ACKs move base, up to the end of the resend the duplicates are still answers to it
+        base += 4;
+        duplicateACKs.reset();
+        for (int i = 0; i < 10; i++)
+            check(!duplicateACKs.onDuplicateACK(base, 0), "duplicate " + i + " after a partial ACK");
+        base = nextSeqNum;
+        duplicateACKs.reset();
+        for (int i = 0; i < 10; i++)
+            check(!duplicateACKs.onDuplicateACK(base, 0), "duplicate " + i + " of the last resent packet");
+
+        // new data acknowledged beyond the resend: a new loss is detected again
+        base = nextSeqNum + 1;
+        duplicateACKs.reset();
+        check(!duplicateACKs.onDuplicateACK(base, 0) && !duplicateACKs.onDuplicateACK(base, 0), "duplicates of a new loss");
+        check(duplicateACKs.onDuplicateACK(base, 0), "third duplicate of a new loss resends");
+
+        System.out.println("SenderSelfCheck: duplicate ACKs after a resend ok");
+    }
+
+    public static void main(String [ ] args) {
+        SenderSelfCheck selfCheck = new SenderSelfCheck();
+
+        try {
+            selfCheck.checkPacketCodec();
+            selfCheck.checkUnwrapSeqNum();
+            selfCheck.checkSendWindowWrap();
+            selfCheck.checkTransferSetup();
+            selfCheck.checkTimingWheel();
+            selfCheck.checkParityEncoder();
+            selfCheck.checkFastRetransmitThreshold();
+            selfCheck.checkRecoverAfterResend();
+        } catch (Exception ex) {
+            System.out.println(ex.getMessage());
+            System.exit(1);
+        }
+
+        System.out.println("SenderSelfCheck: " + selfCheck.checks + " checks passed");
+    }
+}
@@ -0,0 +1,64 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+// StreamDataSource: reads the file with a FileInputStream
+class StreamDataSource implements PacketDataSource {
+    private FileInputStream fileStream;
+    private long fileLength;
+    private long rangeOffset;
+    private long rangeLength;
+    private long remaining;                 // bytes of the range not read yet
+
+    public StreamDataSource(File file) throws IOException {
+        this(file, 0, file.length());
+    }
+
+    public StreamDataSource(File file, long offset, long length) throws IOException {
+        fileStream = new FileInputStream(file);
+        fileLength = file.length();
+        rangeOffset = offset;
+        rangeLength = length;
+        remaining = length;
+
+        fileStream.getChannel().position(offset);
+    }
+
+    public void skip(long bytes) throws IOException {
+        bytes = Math.min(bytes, remaining);
+        fileStream.getChannel().position(fileStream.getChannel().position() + bytes);
+        remaining -= bytes;
+    }
+
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        length = (int) Math.min(length, remaining);
+        int total = 0;
+
+        // a stream may return less than asked before the end of the file
+        while (total < length) {
+            int ret = fileStream.read(buffer, offset + total, length - total);
+            if (ret == -1)
+                break;
+            total += ret;
+        }
+
+        remaining -= total;
+        return (total == 0)? -1 : total;
+    }
+
+    public long offset() {
+        return rangeOffset;
+    }
+
+    public long length() {
+        return rangeLength;
+    }
+
+    public long fileLength() {
+        return fileLength;
+    }
+
+    public void close() throws IOException {
+        fileStream.close();
+    }
+}
@@ -0,0 +1,233 @@
+// TimingWheel: hashed timing wheel for the retransmission timers. A timeout is linked into the
+// slot of the tick it expires in, so scheduling, cancelling and rescheduling are O(1) and reuse
+// the caller's Timeout objects instead of allocating. Time moves on in ticks: either the wheel's
+// own ticker thread advances it (start()), or an event loop calls expireTimeouts() once
+// getNanosToNextTick() has passed. Handlers run outside the wheel's lock, on the thread that
+// advanced the wheel.
+class TimingWheel implements Runnable {
+
+    interface TimeoutHandler {
+        // key is the one given to schedule()
+        void onTimeout(int key);
+    }
+
+    // one timer, scheduled again and again by its owner
+    static class Timeout {
+        private final TimeoutHandler handler;
+        private int key;
+        private long deadlineTick;
+        private Timeout prev;
+        private Timeout next;
+        private TimeoutList list;               // slot or expired list it is linked into, null if not scheduled
+
+        Timeout(TimeoutHandler timeoutHandler) {
+            handler = timeoutHandler;
+        }
+    }
+
+    // doubly linked list threaded through the timeouts themselves
+    private static class TimeoutList {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout t) {
+            t.list = this;
+            t.prev = tail;
+            t.next = null;
+
+            if (tail == null)
+                head = t;
+            else
+                tail.next = t;
+            tail = t;
+        }
+
+        void remove(Timeout t) {
+            if (t.prev == null)
+                head = t.next;
+            else
+                t.prev.next = t.next;
+
+            if (t.next == null)
+                tail = t.prev;
+            else
+                t.next.prev = t.prev;
+
+            t.list = null;
+            t.prev = null;
+            t.next = null;
+        }
+
+        Timeout poll() {
+            Timeout t = head;
+            if (t != null)
+                remove(t);
+            return t;
+        }
+
+        void clear() {
+            while (poll() != null)
+                ;
+        }
+    }
+
+    private final long tickNanos;
+    private final TimeoutList[] slots;          // a power of two of them
+    private final int slotMask;
+    private final long startNanos = System.nanoTime();
+
+    private final TimeoutList expired = new TimeoutList();  // out of their slot, handler not run yet
+    private long currentTick = 0;               // last tick whose slot has been expired
+    private int scheduledCount = 0;             // timeouts in slots or in expired
+    private boolean isShutdown = false;
+
+    public TimingWheel(long tickMillis, int slotCount) {
+        if (tickMillis <= 0)
+            throw new IllegalArgumentException("TimingWheel: tick must be positive");
+
+        tickNanos = tickMillis * 1000000;
+
+        int length = Integer.highestOneBit(Math.max(1, slotCount));
+        if (length < slotCount)
+            length <<= 1;
+
+        slots = new TimeoutList[length];
+        for (int i = 0; i < length; i++)
+            slots[i] = new TimeoutList();
+        slotMask = length - 1;
+    }
+
+    // run the wheel on its own daemon thread, it sleeps while nothing is scheduled
+    public void start() {
+        Thread ticker = new Thread(this, "TimingWheel ticker");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    // (re)schedule the timeout to expire delayMillis from now, at the earliest on the next tick
+    public synchronized void schedule(Timeout t, int key, long delayMillis) {
+        if (isShutdown)
+            return;
+
+        if (t.list != null) {
+            t.list.remove(t);
+            scheduledCount--;
+        }
+
+        long nowTick = (System.nanoTime() - startNanos) / tickNanos;
+
+        // an idle wheel does not tick, skip the ticks it slept through
+        if (scheduledCount == 0 && nowTick > currentTick)
+            currentTick = nowTick;
+
+        long ticks = Math.max(1, (delayMillis * 1000000 + tickNanos - 1) / tickNanos);
+
+        t.key = key;
+        t.deadlineTick = Math.max(nowTick, currentTick) + ticks;
+        slots[(int) (t.deadlineTick & slotMask)].add(t);
+
+        if (++scheduledCount == 1)
+            notifyAll();
+    }
+
+    public synchronized void cancel(Timeout t) {
+        if (t.list != null) {
+            t.list.remove(t);
+            scheduledCount--;
+        }
+    }
+
+    // nanoseconds until the next tick is due, -1 while nothing is scheduled
+    public synchronized long getNanosToNextTick(long now) {
+        if (scheduledCount == 0)
+            return -1;
+
+        return Math.max(0, startNanos + (currentTick + 1) * tickNanos - now);
+    }
+
+    // expire every tick up to now and run the handlers of the expired timeouts. Handlers run
+    // without the wheel's lock: they take the sender's locks, which are held while scheduling.
+    public void expireTimeouts(long now) {
+        synchronized (this) {
+            long nowTick = (now - startNanos) / tickNanos;
+
+            // after a long pause every slot is visited once
+            long lastTick = Math.min(nowTick, currentTick + slots.length);
+
+            for (long tick = currentTick + 1; tick <= lastTick; tick++) {
+                TimeoutList slot = slots[(int) (tick & slotMask)];
+                Timeout t = slot.head;
+
+                while (t != null) {
+                    Timeout next = t.next;
+
+                    // later rounds of the wheel stay in the slot
+                    if (t.deadlineTick <= nowTick) {
+                        slot.remove(t);
+                        expired.add(t);
+                    }
+                    t = next;
+                }
+            }
+
+            if (nowTick > currentTick)
+                currentTick = nowTick;
+        }
+
+        // one at a time: a handler may reschedule or cancel any timeout, expired ones included
+        while (true) {
+            Timeout t;
+            int key;
+
+            synchronized (this) {
+                t = expired.poll();
+                if (t == null)
+                    return;
+
+                scheduledCount--;
+                key = t.key;
+            }
+
+            t.handler.onTimeout(key);
+        }
+    }
+
+    // ticker thread: wait for the next tick while anything is scheduled
+    public void run() {
+        try {
+            while (true) {
+                long waitNanos;
+
+                synchronized (this) {
+                    while (scheduledCount == 0 && !isShutdown)
+                        wait();
+
+                    if (isShutdown)
+                        return;
+
+                    waitNanos = getNanosToNextTick(System.nanoTime());
+                }
+
+                if (waitNanos > 0)
+                    Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+
+                expireTimeouts(System.nanoTime());
+            }
+
+        } catch (InterruptedException ex) {
+            System.out.println("TimingWheel: ticker interrupted");
+        }
+    }
+
+    // cancel everything and stop the ticker, nothing is scheduled afterwards
+    public synchronized void shutdown() {
+        isShutdown = true;
+
+        for (int i = 0; i < slots.length; i++)
+            slots[i].clear();
+        expired.clear();
+        scheduledCount = 0;
+
+        notifyAll();
+    }
+}
@@ -0,0 +1,532 @@
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// TransferBenchmark: microbenchmarks of the per-packet code (packet codec, sequence number
+// unwrapping, window bookkeeping) and end-to-end loopback transfers through a NetworkEmulator
+// across file sizes, windows and loss rates. Everything runs in this JVM: the receiver is loaded
+// from its compiled classes by a class loader of its own, next to this project's packet class.
+// Microbenchmarks report ns/op and bytes allocated per op, transfers MB/s, datagrams and GC
+// work; -json writes all results for comparing runs. The endpoints write their logs into the
+// working directory, so run it from a scratch one.
+public class TransferBenchmark {
+    private static final long iterationNanos = 200000000;  // one measured iteration of a microbenchmark
+
+    private int warmupIterations = 3;
+    private int measuredIterations = 5;
+    private int transferRuns = 3;
+    private long[] fileSizes = { 1000000, 8000000 };
+    private double[] lossRates = { 0, 0.01, 0.05 };
+    private long linkDelay = 1;                 // ms each way
+    private File receiverClasses;               // null: no end-to-end transfers
+    private File jsonFile;
+    private boolean micro = true;
+
+    private PrintStream out = System.out;
+    private List<Result> results = new ArrayList<Result>();
+    private volatile long sink;                 // keeps the results of measured code alive
+
+    private static class Result {
+        final String benchmark;
+        final String params;
+        final double score;
+        final double error;                     // standard deviation over iterations or runs
+        final String unit;
+        final double allocatedPerOp;            // bytes, -1 if unknown
+        final String extra;                     // further JSON fields, may be empty
+
+        Result(String benchmark, String params, double score, double error, String unit, double allocatedPerOp, String extra) {
+            this.benchmark = benchmark;
+            this.params = params;
+            this.score = score;
+            this.error = error;
+            this.unit = unit;
+            this.allocatedPerOp = allocatedPerOp;
+            this.extra = extra;
+        }
+    }
+
+    // a microbenchmark: ops repetitions of the measured operation
+    private static abstract class Micro {
+        final String name;
+        final String params;
+
+        Micro(String name, String params) {
+            this.name = name;
+            this.params = params;
+        }
+
+        abstract long run(int ops) throws Exception;
+    }
+
+    // end-to-end transfer setting: sender and receiver options
+    private static class Setting {
+        final String name;
+        final String[] senderOptions;
+        final String[] receiverOptions;
+
+        Setting(String name, String[] senderOptions, String[] receiverOptions) {
+            this.name = name;
+            this.senderOptions = senderOptions;
+            this.receiverOptions = receiverOptions;
+        }
+    }
+
+    private static final Setting[] settings = {
+        new Setting("gbn window 10", new String[] { "-cc", "fixed" }, new String[0]),
+        new Setting("gbn reno", new String[0], new String[0]),
+        new Setting("gbn sack 32-bit window", new String[] { "-seqnum", "32bit", "-sack", "on" }, new String[0]),
+        new Setting("sr 32-bit window", new String[] { "-mode", "sr", "-seqnum", "32bit" }, new String[] { "-mode", "sr" }),
+    };
+
+    public void runMicrobenchmarks() throws Exception {
+        List<Micro> micros = new ArrayList<Micro>();
+
+        for (final int payload : new int[] { packet.DefaultDataLength, 8192 }) {
+            final packet p = packet.createReusable(payload);
+            p.set(1, 12345, payload, true);
+            final ByteBuffer direct = ByteBuffer.allocateDirect(packet.HeaderLength + payload);
+
+            micros.add(new Micro("packet.encode", "payload=" + payload) {
+                long run(int ops) {
+                    for (int i = 0; i < ops; i++) {
+                        direct.clear();
+                        p.encode(direct);
+                    }
+                    return direct.position();
+                }
+            });
+
+            final ByteBuffer encoded = ByteBuffer.wrap(p.getUDPdata());
+            final packet reuse = packet.createReusable(payload);
+
+            micros.add(new Micro("packet.parseUDPdata", "payload=" + payload) {
+                long run(int ops) throws Exception {
+                    long sum = 0;
+                    for (int i = 0; i < ops; i++) {
+                        encoded.clear();
+                        sum += packet.parseUDPdata(encoded, reuse).getSeqNum();
+                    }
+                    return sum;
+                }
+            });
+        }
+
+        micros.add(new Micro("sender.unwrapSeqNum", "modulo=32") {
+            long run(int ops) {
+                long sum = 0;
+                for (int i = 0; i < ops; i++)
+                    sum += sender.unwrapSeqNum(i & 31, i + 7, 32);
+                return sum;
+            }
+        });
+
+        // what the sender does per packet: fill the window's next slot, publish it, acknowledge it
+        // on its ACK and move base
+        micros.add(new Micro("window.bookkeeping", "window=31") {
+            final SendWindow window = new SendWindow(31, packet.DefaultDataLength);
+
+            long run(int ops) {
+                for (int i = 0; i < ops; i++) {
+                    int next = window.getNextSeqNum();
+                    window.nextSlot();
+                    window.publish(i);
+                    if (window.size() >= 31) {
+                        window.acknowledge(next - 30);
+                        window.advanceBase();
+                    }
+                }
+                return window.size();
+            }
+        });
+
+        for (Micro m : micros)
+            measure(m);
+    }
+
+    private void measure(Micro m) throws Exception {
+        // calibrate the number of ops per iteration
+        int ops = 1000;
+        while (true) {
+            long start = System.nanoTime();
+            sink += m.run(ops);
+            if (System.nanoTime() - start > iterationNanos / 10 || ops >= (1 << 28))
+                break;
+            ops *= 2;
+        }
+        ops *= 10;
+
+        for (int i = 0; i < warmupIterations; i++)
+            sink += m.run(ops);
+
+        double[] nanosPerOp = new double[measuredIterations];
+        long allocated = 0;
+        boolean allocationKnown = true;
+
+        for (int i = 0; i < measuredIterations; i++) {
+            long allocatedBefore = getAllocatedBytes();
+            long start = System.nanoTime();
+            sink += m.run(ops);
+            nanosPerOp[i] = (System.nanoTime() - start) / (double) ops;
+            long allocatedAfter = getAllocatedBytes();
+
+            if (allocatedBefore < 0 || allocatedAfter < 0)
+                allocationKnown = false;
+            allocated += allocatedAfter - allocatedBefore;
+        }
+
+        double mean = mean(nanosPerOp);
+        double allocatedPerOp = allocationKnown ? allocated / (double) ops / measuredIterations : -1;
+
+        results.add(new Result(m.name, m.params, mean, deviation(nanosPerOp, mean), "ns/op", allocatedPerOp, ""));
+        out.println(String.format("%-24s %-16s %10.2f ns/op  +- %6.2f  %8.1f B/op",
+                m.name, m.params, mean, deviation(nanosPerOp, mean), allocatedPerOp));
+    }
+
+    // bytes allocated by this thread so far, -1 if the JVM does not tell
+    private static long getAllocatedBytes() {
+        try {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        } catch (ClassCastException ex) {
+            return -1;
+        } catch (UnsupportedOperationException ex) {
+            return -1;
+        }
+    }
+
+    public void runTransfers() throws Exception {
+        Random random = new Random(1);
+        int portBase = 43000;
+
+        for (long size : fileSizes) {
+            File file = File.createTempFile("benchmark-" + size + "-", ".bin");
+            File received = File.createTempFile("benchmark-" + size + "-", ".out");
+            file.deleteOnExit();
+            received.deleteOnExit();
+            writeRandomFile(file, size, random);
+
+            for (Setting setting : settings) {
+                for (double loss : lossRates) {
+                    double[] rates = new double[transferRuns];
+                    long datagrams = 0;
+                    long gcCount = 0;
+                    long gcMillis = 0;
+                    int failures = 0;
+
+                    // the first transfer of a point only warms up
+                    for (int run = -1; run < transferRuns; run++) {
+                        long gcCountBefore = getGCCount();
+                        long gcMillisBefore = getGCMillis();
+
+                        NetworkEmulator.Link forward = new NetworkEmulator.Link();
+                        NetworkEmulator.Link backward = new NetworkEmulator.Link();
+                        forward.delay = backward.delay = linkDelay;
+                        forward.loss = backward.loss = loss;
+
+                        long nanos = transfer(file, received, setting, forward, backward, portBase);
+                        portBase += 10;
+
+                        if (run < 0)
+                            continue;
+
+                        if (nanos < 0 || !sameContent(file, received)) {
+                            failures++;
+                            continue;
+                        }
+
+                        rates[run] = size / 1000000.0 / (nanos / 1000000000.0);
+                        datagrams += forward.forwarded + forward.dropped;
+                        gcCount += getGCCount() - gcCountBefore;
+                        gcMillis += getGCMillis() - gcMillisBefore;
+                    }
+
+                    int runs = transferRuns - failures;
+                    double[] measured = new double[runs];
+                    for (int i = 0, j = 0; i < transferRuns && j < runs; i++)
+                        if (rates[i] > 0)
+                            measured[j++] = rates[i];
+
+                    double mean = mean(measured);
+                    String params = "size=" + size + ", setting=" + setting.name + ", loss=" + loss;
+                    String extra = String.format(", \"datagramsPerRun\": %d, \"gcCollectionsPerRun\": %.1f, \"gcMillisPerRun\": %.1f, \"failures\": %d",
+                            datagrams / Math.max(runs, 1), gcCount / (double) Math.max(runs, 1), gcMillis / (double) Math.max(runs, 1), failures);
+
+                    results.add(new Result("transfer", params, mean, deviation(measured, mean), "MB/s", -1, extra));
+                    out.println(String.format("%-10s %-24s loss %-5s %8.2f MB/s  +- %6.2f  %7d datagrams  %5.1f GCs  %d failed",
+                            "size " + size, setting.name, Double.toString(loss), mean, deviation(measured, mean),
+                            datagrams / Math.max(runs, 1), gcCount / (double) Math.max(runs, 1), failures));
+                }
+            }
+        }
+    }
+
+    // one transfer through an emulator, returns its nanoseconds or -1 if it did not finish.
+    // The endpoints print their statistics, which are not wanted here.
+    private long transfer(File file, File received, Setting setting, NetworkEmulator.Link forward,
+            NetworkEmulator.Link backward, int portBase) throws Exception {
+        final int senderDataPort = portBase;        // emulator, from the sender
+        final int receiverPort = portBase + 1;
+        final int emulatorACKPort = portBase + 2;   // emulator, from the receiver
+        final int senderACKPort = portBase + 3;
+
+        NetworkEmulator emulator = new NetworkEmulator(senderDataPort, new InetSocketAddress("localhost", receiverPort),
+                emulatorACKPort, new InetSocketAddress("localhost", senderACKPort), forward, backward, 1, false);
+        emulator.start();
+
+        List<String> receiverArgs = new ArrayList<String>();
+        receiverArgs.add("localhost");
+        receiverArgs.add(Integer.toString(emulatorACKPort));
+        receiverArgs.add(Integer.toString(receiverPort));
+        receiverArgs.add(received.getPath());
+        for (String option : setting.receiverOptions)
+            receiverArgs.add(option);
+
+        List<String> senderArgs = new ArrayList<String>();
+        senderArgs.add("localhost");
+        senderArgs.add(Integer.toString(senderDataPort));
+        senderArgs.add(Integer.toString(senderACKPort));
+        senderArgs.add(file.getPath());
+        for (String option : setting.senderOptions)
+            senderArgs.add(option);
+
+        // the receiver has its own packet class, so it gets a class loader of its own
+        ClassLoader receiverLoader = new URLClassLoader(new URL[] { receiverClasses.toURI().toURL() }, null);
+        final Method receiverMain = receiverLoader.loadClass("receiver").getMethod("main", String[].class);
+        final String[] receiverArgArray = receiverArgs.toArray(new String[0]);
+        final String[] senderArgArray = senderArgs.toArray(new String[0]);
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+        }));
+
+        try {
+            Thread receiverThread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        receiverMain.invoke(null, (Object) receiverArgArray);
+                    } catch (Exception ex) {
+                        ex.printStackTrace();
+                    }
+                }
+            }, "benchmark receiver");
+            receiverThread.setDaemon(true);
+            receiverThread.start();
+
+            // the receiver must listen before the first packet
+            Thread.sleep(100);
+
+            Thread senderThread = new Thread(new Runnable() {
+                public void run() {
+                    sender.main(senderArgArray);
+                }
+            }, "benchmark sender");
+            senderThread.setDaemon(true);
+
+            long start = System.nanoTime();
+            senderThread.start();
+
+            senderThread.join(120000);
+            long nanos = System.nanoTime() - start;
+            receiverThread.join(5000);
+
+            return (senderThread.isAlive() || receiverThread.isAlive())? -1 : nanos;
+
+        } finally {
+            System.setOut(console);
+            emulator.close();
+        }
+    }
+
+    private static void writeRandomFile(File file, long size, Random random) throws IOException {
+        byte[] block = new byte[1 << 16];
+        OutputStream stream = new FileOutputStream(file);
+
+        try {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                stream.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static boolean sameContent(File a, File b) throws IOException {
+        if (a.length() != b.length())
+            return false;
+
+        InputStream streamA = new BufferedInputStream(new FileInputStream(a), 1 << 16);
+        InputStream streamB = new BufferedInputStream(new FileInputStream(b), 1 << 16);
+
+        try {
+            int c;
+            while ((c = streamA.read()) != -1)
+                if (c != streamB.read())
+                    return false;
+            return true;
+        } finally {
+            streamA.close();
+            streamB.close();
+        }
+    }
+
+    private static long getGCCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            count += Math.max(0, gc.getCollectionCount());
+        return count;
+    }
+
+    private static long getGCMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            millis += Math.max(0, gc.getCollectionTime());
+        return millis;
+    }
+
+    private static double mean(double[] values) {
+        double sum = 0;
+        for (double v : values)
+            sum += v;
+        return (values.length > 0)? sum / values.length : 0;
+    }
+
+    private static double deviation(double[] values, double mean) {
+        if (values.length < 2)
+            return 0;
+
+        double sum = 0;
+        for (double v : values)
+            sum += (v - mean) * (v - mean);
+        return Math.sqrt(sum / (values.length - 1));
+    }
+
+    // one JSON object per result, in the spirit of JMH's -rf json
+    public void writeJSON(File file) throws IOException {
+        Writer writer = new FileWriter(file);
+
+        try {
+            writer.write("[\n");
+            for (int i = 0; i < results.size(); i++) {
+                Result r = results.get(i);
+                writer.write(String.format("  { \"benchmark\": \"%s\", \"params\": \"%s\", \"score\": %.4f, \"error\": %.4f, "
+                        + "\"unit\": \"%s\", \"allocatedBytesPerOp\": %.2f%s }%s\n",
+                        r.benchmark, r.params, r.score, r.error, r.unit, r.allocatedPerOp, r.extra,
+                        (i + 1 < results.size())? "," : ""));
+            }
+            writer.write("]\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static long[] parseSizes(String str) {
+        String[] parts = str.split(",");
+        long[] sizes = new long[parts.length];
+
+        for (int i = 0; i < parts.length; i++) {
+            String part = parts[i].trim();
+            long unit = 1;
+
+            if (part.endsWith("k"))
+                unit = 1000;
+            else if (part.endsWith("M"))
+                unit = 1000000;
+
+            if (unit > 1)
+                part = part.substring(0, part.length() - 1);
+            sizes[i] = (long) (Double.parseDouble(part) * unit);
+        }
+
+        return sizes;
+    }
+
+    private static double[] parseRates(String str) {
+        String[] parts = str.split(",");
+        double[] rates = new double[parts.length];
+
+        for (int i = 0; i < parts.length; i++)
+            rates[i] = Double.parseDouble(parts[i].trim());
+        return rates;
+    }
+
+    public static void main(String [ ] args) {
+        TransferBenchmark benchmark = new TransferBenchmark();
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (i + 1 >= args.length)
+                    throw new RuntimeException("TransferBenchmark: Missing value of option " + args[i]);
+
+                String option = args[i];
+                String value = args[++i];
+
+                if (option.equals("-receiver"))
+                    benchmark.receiverClasses = new File(value);
+                else if (option.equals("-json"))
+                    benchmark.jsonFile = new File(value);
+                else if (option.equals("-micro"))
+                    benchmark.micro = !value.equals("off");
+                else if (option.equals("-warmup"))
+                    benchmark.warmupIterations = Integer.parseInt(value);
+                else if (option.equals("-iterations"))
+                    benchmark.measuredIterations = Integer.parseInt(value);
+                else if (option.equals("-runs"))
+                    benchmark.transferRuns = Integer.parseInt(value);
+                else if (option.equals("-sizes"))
+                    benchmark.fileSizes = parseSizes(value);
+                else if (option.equals("-loss"))
+                    benchmark.lossRates = parseRates(value);
+                else if (option.equals("-delay"))
+                    benchmark.linkDelay = Long.parseLong(value);
+                else
+                    throw new RuntimeException("Usage:\n"
+                            + "\tjava TransferBenchmark [options]\n\n"
+                            + "[options]:\n"
+                            + "\t-receiver <dir>\tcompiled classes of the receiver, enables the end-to-end transfers\n"
+                            + "\t-json <file>\twrite all results as JSON\n"
+                            + "\t-micro <on|off>\trun the microbenchmarks (default on)\n"
+                            + "\t-warmup <n>\twarm up iterations of a microbenchmark (default 3)\n"
+                            + "\t-iterations <n>\tmeasured iterations of a microbenchmark (default 5)\n"
+                            + "\t-runs <n>\tmeasured transfers per point, after one warm up transfer (default 3)\n"
+                            + "\t-sizes <bytes,...>\tfile sizes, e.g. 1M,8M (default)\n"
+                            + "\t-loss <p,...>\tloss rates of both emulated links (default 0,0.01,0.05)\n"
+                            + "\t-delay <ms>\tdelay of both emulated links (default 1)");
+            }
+
+            if (benchmark.micro)
+                benchmark.runMicrobenchmarks();
+            if (benchmark.receiverClasses != null)
+                benchmark.runTransfers();
+            if (benchmark.jsonFile != null)
+                benchmark.writeJSON(benchmark.jsonFile);
+
+        } catch (NumberFormatException ex) {
+            System.out.println("TransferBenchmark: Can't parse the given number: " + ex.getMessage());
+        } catch (RuntimeException ex) {
+            System.out.println(ex.getMessage());
+        } catch (Exception ex) {
+            System.out.println("TransferBenchmark: " + ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,79 @@
+// VegasCongestionControl: delay based, compares the expected rate (cwnd / baseRTT) with the
+// actual rate (cwnd / RTT) once per RTT and keeps between alpha and beta packets queued in
+// the network, losses are handled like Reno
+class VegasCongestionControl implements CongestionControl {
+    private final int maxWindow;
+
+    private final double alpha = 2;     // packets queued below which the window grows
+    private final double beta = 4;      // packets queued above which the window shrinks
+    private final double gamma = 1;     // packets queued above which slow start ends
+
+    private double cwnd = 1;
+    private double ssthresh;
+
+    private double baseRTT = -1;        // smallest RTT seen, the propagation delay estimate
+    private double minRTTThisRound = -1;
+    private int ackedThisRound = 0;
+
+    public VegasCongestionControl(int maxWindowSize) {
+        maxWindow = maxWindowSize;
+        ssthresh = maxWindowSize;
+    }
+
+    public synchronized int getWindow() {
+        return (int) Math.min(maxWindow, Math.max(1, cwnd));
+    }
+
+    public synchronized void onACK(int newlyAckedPackets, double rttMillis) {
+        if (rttMillis > 0) {
+            if (baseRTT < 0 || rttMillis < baseRTT)
+                baseRTT = rttMillis;
+            if (minRTTThisRound < 0 || rttMillis < minRTTThisRound)
+                minRTTThisRound = rttMillis;
+        }
+
+        ackedThisRound += newlyAckedPackets;
+
+        // adjust once per window worth of ACKs, i.e. once per RTT
+        if (ackedThisRound < getWindow())
+            return;
+
+        if (minRTTThisRound > 0) {
+            // packets this flow keeps queued at the bottleneck
+            double diff = cwnd * (minRTTThisRound - baseRTT) / minRTTThisRound;
+
+            if (cwnd < ssthresh) {
+                if (diff > gamma)
+                    ssthresh = cwnd;    // queue is building, leave slow start
+                else
+                    cwnd *= 2;
+            } else if (diff < alpha) {
+                cwnd += 1;
+            } else if (diff > beta) {
+                cwnd -= 1;
+            }
+        } else if (cwnd < ssthresh) {
+            cwnd *= 2;                  // no delay information (all retransmitted), behave like Reno
+        }
+
+        cwnd = Math.min(Math.max(cwnd, 1), maxWindow);
+        ackedThisRound = 0;
+        minRTTThisRound = -1;
+    }
+
+    public synchronized void onDuplicateACKs() {
+        ssthresh = Math.max(cwnd / 2, 2);
+        cwnd = ssthresh;
+    }
+
+    public synchronized void onTimeout() {
+        ssthresh = Math.max(cwnd / 2, 2);
+        cwnd = 1;
+        ackedThisRound = 0;
+        minRTTThisRound = -1;
+    }
+
+    public String getName() {
+        return "vegas";
+    }
+}
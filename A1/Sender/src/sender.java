@@ -1,19 +1,20 @@
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
-import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 /**
  * CS 456 Assignment 1
@@ -25,33 +26,115 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 
 public class sender implements Runnable {
+    // guards congestion control, loss recovery and the transmitting thread's wait for room in the
+    // window; the window's own bookkeeping (SendWindow) does not take it
     private final Object mux = new Object();
 
-    private final int ACKorEOTPacketLength = 12;
-
     private FileTransmitter fileTransporter;
 
-    private final int windowSize = 10;
-    private int nextSeqNum = 0;
-    private int base = 0;
-
+    private final int SeqNumModulo = 32;
+    private final int fixedWindowSize = 10;     // window of the "fixed" congestion control
+
+    // packets from base to nextSeqNum, created once the setup fixed the window and payload. The
+    // transmitting thread moves nextSeqNum, the thread handling ACKs moves base, and both are
+    // read without mux. Sequence numbers are compared by their difference (nextSeqNum - base <
+    // window) so they may wrap around 2^32 once the wide format is used.
+    private SendWindow window;
+    private final boolean proposeWideSeqNum;    // ask the receiver for 32-bit sequence numbers during setup
+    private final boolean proposeSACK;          // ask the receiver for SACK packets during setup (Go-Back-N)
+    private boolean sack = false;               // SACK packets accepted by the receiver
+    private boolean wideSeqNum = false;         // 32-bit sequence numbers accepted by the receiver
+    private final int maxWideWindowSize = 65536;
+    private final long maxWindowBytes = 64 * 1024 * 1024;  // payload the window may hold, limits it for large payloads
+    private final int proposedPayloadSize;      // negotiated if it differs from packet.DefaultDataLength
+    private final boolean proposeCompression;   // ask the receiver to inflate a deflated stream
+    private final int fecGroupSize;             // -1 without parity packets, 0 for adaptive groups
+    private ParityEncoder parityEncoder;        // null unless the receiver accepted parity packets
+    private final boolean proposeResume;        // ask the receiver how much of the range it has already
+    private long resumedBytes = 0;              // bytes of the range the receiver had, not sent again
+    private final int maxSetupAttempts = 20;
+
+    private final boolean selectiveRepeat;      // true for Selective Repeat, false for Go-Back-N
+    private final boolean eventLoop;            // true for the single threaded NIO engine
+    private final long timerTick;               // ms per tick of the retransmission timing wheel
+
+    // the window never exceeds what the sequence number space can tell apart:
+    // Go-Back-N SeqNumModulo - 1, Selective Repeat SeqNumModulo / 2,
+    // with 32-bit sequence numbers maxWideWindowSize or the receiver's window
+    private int maxWindowSize;
+    private final String congestionControlName;
+    private CongestionControl congestionControl;
+
+    // Go-Back-N: ACKs repeating base - 1, Selective Repeat: ACKs above an unacknowledged base.
+    // Fast retransmit: duplicateACKThreshold of them resend without waiting for the timeout (0
+    // turns it off). If the receiver buffers packets after a loss (Selective Repeat, SACK), only
+    // the packet at base is resent and fast recovery lasts until everything sent before it is
+    // acknowledged. After a resend the duplicates it causes are ignored (DuplicateACKCounter).
+    private final int duplicateACKThreshold;
+    private final DuplicateACKCounter duplicateACKs;
+    private boolean inFastRecovery = false;
+    private int recoverySeqNum;                 // nextSeqNum when fast recovery started
+    private int recoveryWindowInflation = 0;    // duplicate ACKs in fast recovery, each is a packet that left the network
+    private final int maxParityWait = 3;        // duplicate ACKs waited for on top of the threshold with parity
+
+    // ACKs arrive on a channel so the NIO engine can register it with a selector,
+    // the threaded engine reads it through its blocking socket adaptor
+    private DatagramChannel monitoringChannel;
     private DatagramSocket monitoringSocket;
-    private Map<Integer, packet> unacknowledgedPacketsCache = new ConcurrentHashMap<Integer, packet>();
-    private UnacknowledgedPacketsRetransmitTimer retransmitTimer = new UnacknowledgedPacketsRetransmitTimer();
+    private RetransmitTimers retransmitTimers;
 
-    private Thread ACKMonitoringThread;
+    // RTT is sampled from packets sent exactly once (Karn's rule): a retransmission clears the
+    // send time kept by the window
+    private RttEstimator rttEstimator;
 
-    // generating seqnum.log and ack.log files for testing and grading purpose
-    private BufferedWriter sendPacketsSeqNumWriter;     // for recording packet number of sent packet in seqnum.log
-    private BufferedWriter ackPacketsSeqNumWriter;      // for recording packet number of received ACK packet in ack.log
-
-    private sender (FileTransmitter transp, int mtPort) throws SocketException, IOException {
+    private Thread ACKMonitoringThread;
+    private boolean monitoringFinished = false; // guarded by mux
+
+    // -pace: fresh packets and retransmissions leave at the pacer's rate. Retransmissions are
+    // queued by sequence number and sent by the transmitting thread before fresh packets.
+    private final long paceRate;                // -1 for no pacing, 0 for the window per RTT, else bits/s
+    private Pacer pacer;
+    private Set<Integer> pacedRetransmissions = new LinkedHashSet<Integer>();  // guarded by mux
+
+    // sent packets and received ACKs for testing and grading purpose, EventLogConverter
+    // turns sender.events (sender<stream>.events) into seqnum.log and ack.log
+    private EventLog eventLog;
+
+    // statistics printed once the transfer is done, and while it runs through JMX (-jmx) and
+    // JFR events of timeouts and retransmit bursts
+    private final String name;                  // "sender" or "sender: stream <n>"
+    private long startTime;
+    private long finishTime;
+    private final boolean jmxMetrics;
+    private SenderMetrics metrics;
+
+    // stream is the index of the byte range this sender carries with -streams, -1 for the whole file
+    private sender (FileTransmitter transp, int mtPort, SenderOptions options, int stream) throws SocketException, IOException {
         fileTransporter = transp;
-
-        sendPacketsSeqNumWriter = new BufferedWriter(new FileWriter("seqnum.log"));
-        ackPacketsSeqNumWriter = new BufferedWriter(new FileWriter("ack.log"));
-
-        monitoringSocket = new DatagramSocket(mtPort);
+        selectiveRepeat = options.selectiveRepeat;
+        proposeWideSeqNum = options.wideSeqNum;
+        proposeSACK = options.sack;
+        duplicateACKThreshold = options.duplicateACKThreshold;
+        duplicateACKs = new DuplicateACKCounter(duplicateACKThreshold);
+        proposedPayloadSize = options.payloadSize;
+        proposeCompression = options.compress;
+        proposeResume = options.resume;
+        fecGroupSize = options.fecGroupSize;
+        eventLoop = options.eventLoop;
+        timerTick = options.timerTick;
+        rttEstimator = new RttEstimator(timerTick);
+        paceRate = options.paceRate;
+        jmxMetrics = options.jmxMetrics;
+        maxWindowSize = selectiveRepeat ? SeqNumModulo / 2 : SeqNumModulo - 1;
+        congestionControlName = options.congestionControlName;
+
+        name = (stream < 0)? "sender" : "sender: stream " + stream;
+        eventLog = new EventLog((stream < 0)? "sender.events" : "sender" + stream + ".events");
+        metrics = new SenderMetrics(name, rttEstimator);
+
+        monitoringChannel = DatagramChannel.open();
+        monitoringSocket = monitoringChannel.socket();
+        monitoringSocket.bind(new InetSocketAddress(mtPort));
 
         // start monitoring thread
         ACKMonitoringThread = new Thread(this);
@@ -59,101 +142,353 @@ public class sender implements Runnable {
 
     // sender starts transmitting file
     public void start() throws InterruptedException, IOException, Exception {
-        ACKMonitoringThread.start();        // start monitoring the ACK packet from receiver
-        startFileTransmitting();            // start transmitting file
+        if (jmxMetrics)
+            metrics.register(fileTransporter.getSessionId());
 
-        ACKMonitoringThread.join();         // wait until monitoring thread finishes
+        try {
+            transfer();
+        } finally {
+            metrics.unregister();
+        }
     }
 
-    private void startFileTransmitting() throws InterruptedException, IOException, Exception {
-        while (!fileTransporter.getIsFinished()) {
-            synchronized (mux) {
-                if (nextSeqNum < base + windowSize) {
-                    // read next chuck of file and create packet wrapper
-                    packet pkt = fileTransporter.readNextPacketFromFile(nextSeqNum);
-                    // push it to unacknowledged packets cache
-                    unacknowledgedPacketsCache.put(new Integer(nextSeqNum), pkt);
+    private void transfer() throws InterruptedException, IOException, Exception {
+        startTime = System.nanoTime();
+
+        negotiateTransferSetup();
+
+        congestionControl = createCongestionControl(congestionControlName);
+        window = new SendWindow(maxWindowSize, fileTransporter.getPayloadSize());
 
-                    // send packet
-                    fileTransporter.sendPacket(pkt);
+        if (paceRate >= 0)
+            pacer = new Pacer(paceRate, packet.HeaderLength + fileTransporter.getPayloadSize());
 
-                    // recording packet number of sent packet in seqnum.log
-                    sendPacketsSeqNumWriter.write(String.format("%d\n", nextSeqNum));
-                    sendPacketsSeqNumWriter.flush();
+        WheelRetransmitTimers timers = new WheelRetransmitTimers(timerTick);
+        retransmitTimers = timers;
 
-                    // reset count down timer
-                    if (base == nextSeqNum)
-                        retransmitTimer.reschedule();
+        if (eventLoop) {
+            startEventLoop(timers.getWheel());  // transmit, monitor and retransmit on this thread
+        } else {
+            timers.getWheel().start();
 
-                    nextSeqNum++;
-                } else {
+            ACKMonitoringThread.start();        // start monitoring the ACK packet from receiver
+            startFileTransmitting();            // start transmitting file
+
+            ACKMonitoringThread.join();         // wait until monitoring thread finishes
+        }
+
+        finishTime = System.nanoTime();
+        metrics.finish();
+    }
+
+    public long getBytesTransferred() {
+        return fileTransporter.getLength() - resumedBytes;
+    }
+
+    public void printStatistics() {
+        double millis = (finishTime - startTime) / 1000000.0;
+
+        System.out.println(String.format("%s: %d bytes in %.0f ms (%.2f MB/s), %d packets sent, %d retransmitted (%d fast)",
+                name, getBytesTransferred(), millis, getBytesTransferred() / 1000.0 / Math.max(millis, 1),
+                metrics.getPacketsSent(), metrics.getPacketsRetransmitted(), metrics.getPacketsFastRetransmitted()));
+
+        System.out.println(String.format("%s: RTT %.2f ms mean, %.2f ms 99th percentile, %d duplicate ACKs, %d timeouts, "
+                + "%.0f%% window occupancy, %d ms waiting",
+                name, metrics.getRTTMeanMillis(), metrics.getRTT99thPercentileMillis(), metrics.getDuplicateACKs(),
+                metrics.getTimeouts(), metrics.getMeanWindowOccupancy() * 100, metrics.getBlockedMillis()));
+
+        if (resumedBytes > 0)
+            System.out.println(String.format("%s: resumed behind %d bytes the receiver had already", name, resumedBytes));
+
+        if (parityEncoder != null)
+            System.out.println(String.format("%s: %d parity packets, %d lost packets rebuilt from them%s", name,
+                    metrics.getParityPacketsSent(), metrics.getPacketsRebuilt(), (fecGroupSize == 0)?
+                    String.format(", %.2f%% loss estimate", parityEncoder.getLossRate() * 100) : ""));
+
+        CompressingDataSource compression = fileTransporter.getCompression();
+        if (compression != null)
+            System.out.println(String.format("%s: compressed to %d bytes (%.1f%%), %d blocks deflated, %d sent raw",
+                    name, compression.getEncodedLength(), compression.getEncodedLength() * 100.0 / Math.max(1, getBytesTransferred()),
+                    compression.getDeflatedBlocks(), compression.getStoredBlocks()));
+
+        ReadAheadDataSource readAhead = fileTransporter.getReadAhead();
+        if (readAhead != null)
+            System.out.println(String.format("%s: %d reads waited for the read-ahead thread", name, readAhead.getWaits()));
+
+        if (pacer != null)
+            System.out.println(String.format("%s: paced at %.2f Mbit/s, target %.2f Mbit/s",
+                    name, pacer.getAchievedRate() / 1000000, pacer.getTargetRate() / 1000000));
+    }
+
+    private void startFileTransmitting() throws InterruptedException, IOException, Exception {
+        synchronized (mux) {
+            while (!monitoringFinished) {
+                long waitNanos = sendAllowedPackets();
+
+                // without pacing retransmissions are sent by the threads detecting the loss,
+                // so this thread is done once EOT is sent
+                if (pacer == null && fileTransporter.getIsFinished())
+                    return;
+
+                // the pacer lets the next packet go in waitNanos, an ACK may open the window sooner
+                long waitStart = System.nanoTime();
+                if (waitNanos > 0)
+                    mux.wait(Math.max(1, waitNanos / 1000000));
+                else
                     mux.wait();
-                }
+                metrics.onBlocked(System.nanoTime() - waitStart);
             }
         }
     }
 
-    // Start monitoring the ACK packet sent from receiver
-    public void run() {
-        byte[] receivedData = new byte[ACKorEOTPacketLength];
+    // send queued retransmissions, then the fresh packets the window allows, as long as the pacer
+    // lets them go. Returns the nanoseconds until the pacer allows the next packet, 0 if nothing
+    // is left to send. Called with mux held.
+    private long sendAllowedPackets() throws IOException, Exception {
+        while (true) {
+            boolean retransmission = !pacedRetransmissions.isEmpty();
 
-        try {
-            while (true) {
-                DatagramPacket receivedDatagramPacket = new DatagramPacket(receivedData, receivedData.length);
-                monitoringSocket.receive(receivedDatagramPacket);
+            if (!retransmission && (fileTransporter.getIsFinished() || window.size() >= getWindowSize()))
+                return 0;
 
-                packet receivedPacket = packet.parseUDPdata(receivedData);
+            if (pacer != null) {
+                if (pacer.pacesWindow())
+                    pacer.setWindowRate((long) getWindowSize() * (packet.HeaderLength + fileTransporter.getPayloadSize()),
+                            rttEstimator.getSmoothedRTT());
 
-                // received ACK packet error checking
-                if (receivedPacket.getLength() != 0)
-                    throw new RuntimeException("pack length is not 0");
+                long waitNanos = pacer.getNanosToWait(System.nanoTime());
+                if (waitNanos > 0)
+                    return waitNanos;
+            }
 
-                // update base and remove received packets from unacknowledged packets cache
-                int receivedPacketSeqNum = getSeqNumFromPacketSeqNum(receivedPacket.getSeqNum());
+            if (retransmission)
+                sendQueuedRetransmission();
+            else
+                sendNextPacket();
+        }
+    }
 
-                for (int i = base; i <= receivedPacketSeqNum; i++)
-                    unacknowledgedPacketsCache.remove(new Integer(i));
+    // read and send the packet at nextSeqNum, called with mux held
+    private void sendNextPacket() throws IOException, Exception {
+        int seqNum = window.getNextSeqNum();
+        boolean wasEmpty = window.isEmpty();
+
+        // read next chuck of file straight into the window's slot for it
+        packet pkt = fileTransporter.readNextPacketFromFile(window.nextSlot(), seqNum);
+
+        // the last group is protected before EOT
+        if (parityEncoder != null && pkt.getType() == 2)
+            sendParity(parityEncoder.flush());
+
+        // the packet joins the window before it leaves, so its ACK always finds it
+        long sendTime = System.nanoTime();
+        window.publish(sendTime);
+
+        // send packet
+        fileTransporter.sendPacket(pkt);
+        if (pacer != null)
+            pacer.onSent(pkt.getEncodedLength(), sendTime);
+
+        // recording packet number of sent packet
+        eventLog.record(EventLog.Sent, seqNum);
+        metrics.onPacketSent(window.size(), getWindowSize());
+
+        if (parityEncoder != null && pkt.getType() == 1)
+            sendParity(parityEncoder.add(pkt, seqNum, metrics.packetsSent.get(),
+                    metrics.packetsRetransmitted.get() + metrics.packetsRebuilt.get()));
+
+        // Selective Repeat: every packet has its own timer
+        // Go-Back-N: reset count down timer
+        if (selectiveRepeat)
+            retransmitTimers.startPacketTimer(seqNum);
+        else if (wasEmpty)
+            retransmitTimers.restartWindowTimer();
+    }
 
-                // for debug
-                // System.out.println("Sender: Packet Sequence " + receivedPacketSeqNum + " received, type: " + receivedPacket.getType());
-                
-                synchronized (mux) {
-                    base = Math.max(base, receivedPacketSeqNum + 1);
-
-                    // Update scheduled retransmitting task
-                    if (base == nextSeqNum) {
-                        // System.out.println("cancel the task@ run");
-                        retransmitTimer.cancelTask();
-                        
-                    } else {
-                    	// System.out.println("reschedule the task@ run()");
-                        retransmitTimer.reschedule();
-                        
-                    }
+    // parity packets stay out of the window: they are neither cached nor retransmitted
+    private void sendParity(packet parity) throws IOException {
+        if (parity == null)
+            return;
+
+        fileTransporter.sendPacket(parity);
+        if (pacer != null)
+            pacer.onSent(parity.getEncodedLength(), System.nanoTime());
+        metrics.parityPacketsSent.incrementAndGet();
+    }
+
+    // NIO engine: a single thread waits on the selector for ACKs or the next retransmit
+    // deadline, then handles every ACK that arrived, fires expired timers and refills the window
+    private void startEventLoop(TimingWheel wheel) throws IOException, Exception {
+
+        Selector selector = Selector.open();
+        monitoringChannel.configureBlocking(false);
+        monitoringChannel.register(selector, SelectionKey.OP_READ);
 
-                    // base is changed, sender can continue sending packets
-                    mux.notifyAll();
+        ByteBuffer receivedBuffer = ByteBuffer.allocateDirect(packet.MaxPacketLength);
+        packet receivedPacket = packet.createReusable();
+
+        try {
+            boolean finished = false;
+
+            while (!finished) {
+                long paceNanos;
+                synchronized (mux) {
+                    paceNanos = sendAllowedPackets();
                 }
 
-                if (receivedPacket.getType() == 0) {
-                    // recording packet number of received ACK packet in ack.log
-                    ackPacketsSeqNumWriter.write(String.format("%d\n", receivedPacketSeqNum));
-                    ackPacketsSeqNumWriter.flush();
-
-                } else if (receivedPacket.getType() == 2) {
-                    if (shouldFinishMonitoring())
-                        break;
-                    
-                    throw new RuntimeException("EOT packet received while FileTransmitter is not finished");
-                    
-                } else if (receivedPacket.getType() != 1) {
-                    throw new RuntimeException("undefined packet received: type " + receivedPacket.getType());
+                long waitNanos = wheel.getNanosToNextTick(System.nanoTime());
+                if (paceNanos > 0 && (waitNanos < 0 || paceNanos < waitNanos))
+                    waitNanos = paceNanos;
+
+                // the wheel ticks in whole milliseconds, a partial one is rounded up
+                long waitStart = System.nanoTime();
+                if (waitNanos < 0)
+                    selector.select();
+                else if (waitNanos == 0)
+                    selector.selectNow();
+                else
+                    selector.select((waitNanos + 999999) / 1000000);
+                if (waitNanos != 0)
+                    metrics.onBlocked(System.nanoTime() - waitStart);
+
+                selector.selectedKeys().clear();
+
+                // drain every ACK that arrived
+                while (!finished && monitoringChannel.receive(receivedBuffer) != null) {
+                    receivedBuffer.flip();
+                    packet.parseUDPdata(receivedBuffer, receivedPacket);
+                    receivedBuffer.clear();
+
+                    finished = handleACK(receivedPacket);
                 }
+
+                wheel.expireTimeouts(System.nanoTime());
+            }
+        } finally {
+            selector.close();
+            finishMonitoring();
+        }
+    }
+
+    // SETUP handshake: announce the mode, propose 32-bit sequence numbers, tell where the data goes
+    // in the file and learn the receiver's window. The SETUP packet is resent until the receiver answers, its first
+    // answer seeds the RTT.
+    private void negotiateTransferSetup() throws IOException, Exception {
+        TransferSetup proposal = new TransferSetup();
+        proposal.set(TransferSetup.Mode, selectiveRepeat ? TransferSetup.SelectiveRepeat : TransferSetup.GoBackN);
+        proposal.set(TransferSetup.SeqNumFormat, proposeWideSeqNum ? TransferSetup.SeqNum32Bit : TransferSetup.SeqNumModulo32);
+        proposal.set(TransferSetup.FileSize, Long.toString(fileTransporter.getFileLength()));
+        proposal.set(TransferSetup.RangeOffset, Long.toString(fileTransporter.getOffset()));
+        proposal.set(TransferSetup.ACKPort, monitoringSocket.getLocalPort());
+        if (proposeSACK)
+            proposal.set(TransferSetup.SACK, "on");
+        if (proposedPayloadSize != packet.DefaultDataLength)
+            proposal.set(TransferSetup.PayloadSize, proposedPayloadSize);
+        if (proposeCompression)
+            proposal.set(TransferSetup.Compression, TransferSetup.Deflate);
+        if (proposeResume)
+            proposal.set(TransferSetup.Resume, "on");
+        if (fecGroupSize >= 0)
+            proposal.set(TransferSetup.FEC, TransferSetup.XORParity);
+
+        packet setupPacket = packet.createSetup(proposal);
+        byte[] receivedData = new byte[packet.MaxPacketLength];
+
+        for (int attempt = 0; attempt < maxSetupAttempts; attempt++) {
+            long sendTime = System.nanoTime();
+            fileTransporter.sendPacket(setupPacket);
+
+            monitoringSocket.setSoTimeout((int) rttEstimator.getRTO());
+
+            try {
+                monitoringSocket.receive(new DatagramPacket(receivedData, receivedData.length));
+            } catch (SocketTimeoutException ex) {
+                rttEstimator.backoff();
+                continue;
             }
 
-            // close BufferWriter for writing seqnum.log and ack.log
-            sendPacketsSeqNumWriter.close();
-            ackPacketsSeqNumWriter.close();
+            packet reply = packet.parseUDPdata(receivedData);
+
+            if (reply.getType() != 3)
+                throw new RuntimeException("sender: Unexpected packet during setup: type " + reply.getType());
+
+            // Karn's rule: a reply after a resend could answer any of the SETUP packets
+            if (attempt == 0)
+                rttEstimator.addSample(System.nanoTime() - sendTime);
+
+            applyTransferSetup(TransferSetup.parse(new String(reply.getData())));
+
+            monitoringSocket.setSoTimeout(0);
+            return;
+        }
+
+        throw new RuntimeException("sender: Receiver did not answer the transfer setup");
+    }
+
+    private void applyTransferSetup(TransferSetup accepted) throws IOException {
+        // a Go-Back-N sender would take Selective Repeat ACKs for cumulative ones and the other way round
+        String mode = selectiveRepeat ? TransferSetup.SelectiveRepeat : TransferSetup.GoBackN;
+        if (!accepted.get(TransferSetup.Mode, "").equals(mode))
+            throw new RuntimeException("sender: Receiver rejected mode " + mode + ", it answered mode "
+                    + accepted.get(TransferSetup.Mode, "(none)"));
+
+        wideSeqNum = accepted.get(TransferSetup.SeqNumFormat, TransferSetup.SeqNumModulo32).equals(TransferSetup.SeqNum32Bit);
+        sack = accepted.get(TransferSetup.SACK, "off").equals("on");
+
+        // with SACK the receiver buffers like Selective Repeat, so the same window limits apply
+        if (sack)
+            maxWindowSize = SeqNumModulo / 2;
+
+        if (wideSeqNum) {
+            maxWindowSize = maxWideWindowSize;
+
+            // Selective Repeat must not send beyond what the receiver can buffer
+            if (selectiveRepeat || sack)
+                maxWindowSize = Math.min(maxWindowSize, accepted.getInt(TransferSetup.ReceiveWindow, SeqNumModulo / 2));
+        }
+
+        // a receiver that does not know the parameter keeps the default payload
+        int payloadSize = Math.min(proposedPayloadSize, accepted.getInt(TransferSetup.PayloadSize, packet.DefaultDataLength));
+        maxWindowSize = (int) Math.max(1, Math.min(maxWindowSize, maxWindowBytes / payloadSize));
+
+        fileTransporter.setWideSeqNum(wideSeqNum);
+        fileTransporter.setPayloadSize(payloadSize);
+
+        // the receiver only agrees with 32-bit sequence numbers and buffering
+        if (fecGroupSize >= 0 && accepted.get(TransferSetup.FEC, "off").equals(TransferSetup.XORParity))
+            parityEncoder = new ParityEncoder(fecGroupSize, payloadSize);
+
+        // a receiver without a checkpoint of the range answers 0 or nothing
+        if (proposeResume) {
+            resumedBytes = Math.min(fileTransporter.getLength(), Math.max(0, accepted.getLong(TransferSetup.Resume, 0)));
+            fileTransporter.skip(resumedBytes);
+        }
+
+        // a receiver that does not know compression gets the raw file
+        if (accepted.get(TransferSetup.Compression, "off").equals(TransferSetup.Deflate))
+            fileTransporter.enableCompression();
+    }
+
+    // Start monitoring the ACK packet sent from receiver
+    public void run() {
+        // large enough for a late duplicate answer to SETUP, all reused for every ACK
+        byte[] receivedData = new byte[packet.MaxPacketLength];
+        ByteBuffer receivedBuffer = ByteBuffer.wrap(receivedData);
+        DatagramPacket receivedDatagramPacket = new DatagramPacket(receivedData, receivedData.length);
+        packet receivedPacket = packet.createReusable();
+
+        try {
+            while (true) {
+                receivedDatagramPacket.setLength(receivedData.length);
+                monitoringSocket.receive(receivedDatagramPacket);
+
+                receivedBuffer.clear();
+                receivedBuffer.limit(receivedDatagramPacket.getLength());
+                packet.parseUDPdata(receivedBuffer, receivedPacket);
+
+                if (handleACK(receivedPacket))
+                    break;
+            }
 
         } catch (IOException ex) {
             System.out.println("sender: BufferedWriter: File I/O error" + ex.getMessage()+ "\n");
@@ -161,71 +496,571 @@ public class sender implements Runnable {
             System.out.println("sender: Received packet corrupted:" + ex.getMessage()+ "\n");
         }
 
-        // close monitoring, transmitting socket, and retransmitting timer
+        finishMonitoring();
+    }
+
+    // process one packet from the receiver, returns true once the EOT has been acknowledged
+    private boolean handleACK(packet receivedPacket) throws IOException, RuntimeException {
+        // receiver answered a resent SETUP packet, setup is already done
+        if (receivedPacket.getType() == 3)
+            return false;
+
+        // answer meant for another transfer
+        if (receivedPacket.getSessionId() != fileTransporter.getSessionId())
+            return false;
+
+        // the receiver rebuilt a packet from parity, its ACK follows as usual
+        if (receivedPacket.getType() == 5) {
+            metrics.packetsRebuilt.incrementAndGet();
+            return false;
+        }
+
+        // received ACK packet error checking, only SACK packets carry data
+        if (receivedPacket.getLength() != 0 && receivedPacket.getType() != 4)
+            throw new RuntimeException("pack length is not 0");
+
+        // update base and acknowledge received packets in the window. A packet joins the window
+        // before it is sent, so nextSeqNum already counts the packet of any ACK
+        int receivedPacketSeqNum = getSeqNumFromPacketSeqNum(receivedPacket.getSeqNum());
+
+        // for debug
+        // System.out.println("Sender: Packet Sequence " + receivedPacketSeqNum + " received, type: " + receivedPacket.getType());
+
+        // Selective Repeat: the receiver echoes EOT only once everything is delivered, so the
+        // echo acknowledges all packets even if some of their own ACKs were lost
+        if (selectiveRepeat && receivedPacket.getType() != 2)
+            onSelectiveACKReceived(receivedPacketSeqNum);
+        else
+            onCumulativeACKReceived(receivedPacketSeqNum);
+
+        if (receivedPacket.getType() == 4)
+            onSACKReceived(receivedPacketSeqNum, receivedPacket);
+
+        if (receivedPacket.getType() == 0 || receivedPacket.getType() == 4) {
+            // recording packet number of received ACK packet
+            eventLog.record(EventLog.ACKReceived, receivedPacketSeqNum);
+
+        } else if (receivedPacket.getType() == 2) {
+            if (shouldFinishMonitoring())
+                return true;
+
+            throw new RuntimeException("EOT packet received while FileTransmitter is not finished");
+
+        } else if (receivedPacket.getType() != 1) {
+            throw new RuntimeException("undefined packet received: type " + receivedPacket.getType());
+        }
+
+        return false;
+    }
+
+    // stop retransmitting, close the logs, the monitoring and the transmitting socket
+    private void finishMonitoring() {
+        retransmitTimers.shutdown();
+
+        synchronized (mux) {
+            monitoringFinished = true;
+            mux.notifyAll();
+        }
+
+        try {
+            // a timer task retransmitting after this point is no longer recorded
+            eventLog.close();
+        } catch (IOException ex) {
+            System.out.println("sender: EventLog: File I/O error" + ex.getMessage()+ "\n");
+        }
+
         monitoringSocket.close();
         fileTransporter.closeTransmitterSocket();
-        retransmitTimer.cancel();
 
         // for debug
         // System.out.println("sender: EOT packet received from receiver.");
     }
 
-    private int getSeqNumFromPacketSeqNum(int packetSeqNum) {
-        int lowerBound = nextSeqNum - 2 * windowSize;
+    // Go-Back-N: the ACK acknowledges every packet up to and including receivedPacketSeqNum
+    private void onCumulativeACKReceived(int receivedPacketSeqNum) {
+        synchronized (mux) {
+            int base = window.getBase();
+
+            if (receivedPacketSeqNum - base >= 0) {
+                congestionControl.onACK(receivedPacketSeqNum + 1 - base, sampleRTT(receivedPacketSeqNum));
+                duplicateACKs.reset();
+            } else if (receivedPacketSeqNum == base - 1 && !window.isEmpty()) {
+                onDuplicateACK();
+            }
+
+            for (int i = base; i - receivedPacketSeqNum <= 0; i++)
+                acknowledgePacket(i);
+
+            if (receivedPacketSeqNum + 1 - base > 0) {
+                base = receivedPacketSeqNum + 1;
+                window.setBase(base);
+
+                // a partial ACK in fast recovery points at the next lost packet (NewReno)
+                if (inFastRecovery) {
+                    if (base - recoverySeqNum >= 0)
+                        exitFastRecovery();
+                    else
+                        fastRetransmit();
+                }
+            }
+
+            // Update scheduled retransmitting task
+            if (window.isEmpty()) {
+                // System.out.println("cancel the task@ run");
+                retransmitTimers.stopWindowTimer();
 
-        int num = lowerBound - lowerBound % 32 + packetSeqNum;
-        return (num >= lowerBound)? num : num + 32;
+            } else {
+                // System.out.println("reschedule the task@ run()");
+                retransmitTimers.restartWindowTimer();
+
+            }
+
+            // base is changed, sender can continue sending packets
+            metrics.setWindow(window.size(), getWindowSize());
+            mux.notifyAll();
+        }
     }
 
-    private boolean shouldFinishMonitoring() {
+    // Selective Repeat: only the acknowledged packet leaves the window, base moves up to the
+    // smallest packet that is still unacknowledged
+    private void onSelectiveACKReceived(int receivedPacketSeqNum) {
+        synchronized (mux) {
+            // duplicate ACK of a packet below base, or the packet is acknowledged already and
+            // the receiver resent its ACK
+            if (!window.isUnacknowledged(receivedPacketSeqNum))
+                return;
+
+            congestionControl.onACK(1, sampleRTT(receivedPacketSeqNum));
+
+            if (receivedPacketSeqNum == window.getBase())
+                duplicateACKs.reset();
+            else
+                onDuplicateACK();
+
+            acknowledgePacket(receivedPacketSeqNum);
+            retransmitTimers.stopPacketTimer(receivedPacketSeqNum);
+
+            int base = window.advanceBase();
+
+            if (inFastRecovery && base - recoverySeqNum >= 0)
+                exitFastRecovery();
+
+            // base is changed, sender can continue sending packets
+            metrics.setWindow(window.size(), getWindowSize());
+            mux.notifyAll();
+        }
+    }
+
+    // SACK: bit i of the bitmap stands for packet cumulativeSeqNum + 2 + i, the one right after
+    // the cumulative ACK is missing. Packets the receiver holds leave the window, so a timeout
+    // only retransmits the gaps.
+    private void onSACKReceived(int cumulativeSeqNum, packet sackPacket) {
+        byte[] bitmap = sackPacket.getDataArray();
+
         synchronized (mux) {
-            return fileTransporter.getIsFinished() && nextSeqNum == base;
+            // packets outside the window are ignored by acknowledgePacket
+            for (int i = 0; i < sackPacket.getLength() * 8; i++) {
+                if ((bitmap[i >> 3] & (1 << (i & 7))) != 0)
+                    acknowledgePacket(cumulativeSeqNum + 2 + i);
+            }
         }
     }
 
-    private class UnacknowledgedPacketsRetransmitTimer extends Timer {
-        private final int countDownDelay = 100;
+    // the packet left the network: count its payload, its slot is refilled once base passes it.
+    // Called with mux held.
+    private void acknowledgePacket(int seqNum) {
+        packet acknowledgedPacket = window.acknowledge(seqNum);
+
+        if (acknowledgedPacket != null)
+            metrics.bytesAcknowledged.addAndGet(acknowledgedPacket.getLength());
+    }
+
+    // one more ACK that did not move base: the packet at base is probably lost, called with mux held
+    private void onDuplicateACK() {
+        metrics.duplicateACKs.incrementAndGet();
 
-        private TimerTask unacknowledgedPacketsRetransmitTimerTask;
+        if (duplicateACKThreshold == 0)
+            return;
 
-        public UnacknowledgedPacketsRetransmitTimer() {
-            super();
+        // the window grows by the packets that keep arriving at the receiver during recovery
+        if (inFastRecovery) {
+            recoveryWindowInflation++;
+            mux.notifyAll();
+            return;
         }
 
-        public void reschedule() {
-            cancelTask();
-            
-            unacknowledgedPacketsRetransmitTimerTask = new TimerTask() {
+        // with parity the receiver may rebuild the lost packet once the rest of its group arrives,
+        // but waiting for a whole large group would leave the loss to the timeout
+        int extraWait = (parityEncoder != null)? Math.min(parityEncoder.getGroupSize(), maxParityWait) : 0;
 
-                @Override
-                public void run() {
-                    // resend all unacknowledged packet
-                    for (int unacknowledgedPacketSeqNum = base; unacknowledgedPacketSeqNum < nextSeqNum; unacknowledgedPacketSeqNum++) {
-                        try {
-                            fileTransporter.sendPacket(unacknowledgedPacketsCache.get(new Integer(unacknowledgedPacketSeqNum)));
-
-                            // recording packet number of sent packet in seqnum.log
-                            sendPacketsSeqNumWriter.write(String.format("%d\n", unacknowledgedPacketSeqNum));
-                            sendPacketsSeqNumWriter.flush();
-                            
-                        } catch (IOException ex) {
-                            System.out.println("sender: UnacknowledgedPacketsRetransmitTimer: packet I/O error " + ex.getMessage());
-                        }
-                    }
+        if (!duplicateACKs.onDuplicateACK(window.getBase(), extraWait))
+            return;
+
+        congestionControl.onDuplicateACKs();
+
+        // plain Go-Back-N: the receiver dropped every packet after the lost one, resend them all
+        if (!selectiveRepeat && !sack) {
+            duplicateACKs.onResent(window.getNextSeqNum());
+            metrics.packetsFastRetransmitted.addAndGet(retransmitUnacknowledgedPackets("duplicate ACKs"));
+            retransmitTimers.restartWindowTimer();
+            return;
+        }
+
+        inFastRecovery = true;
+        recoverySeqNum = window.getNextSeqNum();
+        recoveryWindowInflation = duplicateACKThreshold;
+        fastRetransmit();
+    }
+
+    // resend the packet at base without waiting for its timer, called with mux held
+    private void fastRetransmit() {
+        int base = window.getBase();
+        packet unacknowledgedPacket = window.get(base);
+
+        if (unacknowledgedPacket != null) {
+            retransmit(base, unacknowledgedPacket);
+            metrics.packetsFastRetransmitted.incrementAndGet();
+        }
+    }
+
+    private void exitFastRecovery() {
+        inFastRecovery = false;
+        recoveryWindowInflation = 0;
+        duplicateACKs.reset();
+    }
+
+    // Go-Back-N timeout: resend all unacknowledged packets
+    private void retransmitWindow() {
+        // the timer may fire just as the last ACK arrives
+        if (!window.isEmpty())
+            recordTimeout(window.getBase());
+        rttEstimator.backoff();
+        congestionControl.onTimeout();
+
+        synchronized (mux) {
+            exitFastRecovery();
+            duplicateACKs.onResent(window.getNextSeqNum());
+        }
+
+        retransmitUnacknowledgedPackets("timeout");
+    }
+
+    // resend every packet from base to nextSeqNum that is still unacknowledged, returns how many
+    private int retransmitUnacknowledgedPackets(String cause) {
+        RetransmitBurstEvent burst = new RetransmitBurstEvent();
+        burst.begin();
+
+        int firstSeqNum = window.getBase();
+        int nextSeqNum = window.getNextSeqNum();
+        int count = 0;
+
+        for (int unacknowledgedPacketSeqNum = firstSeqNum; unacknowledgedPacketSeqNum - nextSeqNum < 0; unacknowledgedPacketSeqNum++) {
+            packet unacknowledgedPacket = window.get(unacknowledgedPacketSeqNum);
+
+            // acknowledged since the loop started
+            if (unacknowledgedPacket == null)
+                continue;
+
+            retransmit(unacknowledgedPacketSeqNum, unacknowledgedPacket);
+            count++;
+        }
+
+        if (burst.shouldCommit()) {
+            burst.session = fileTransporter.getSessionId();
+            burst.cause = cause;
+            burst.firstSeqNum = firstSeqNum;
+            burst.packets = count;
+            burst.commit();
+        }
+
+        return count;
+    }
+
+    // Selective Repeat timeout of one packet, returns false if it has been acknowledged meanwhile
+    private boolean retransmitPacket(int seqNum) {
+        packet unacknowledgedPacket = window.get(seqNum);
+
+        if (unacknowledgedPacket == null)
+            return false;
+
+        recordTimeout(seqNum);
+
+        // back off once per timeout of the oldest packet, not once per expired timer
+        if (seqNum == window.getBase()) {
+            rttEstimator.backoff();
+            congestionControl.onTimeout();
+
+            synchronized (mux) {
+                exitFastRecovery();
+                duplicateACKs.onResent(window.getNextSeqNum());
+            }
+        }
+
+        retransmit(seqNum, unacknowledgedPacket);
+        return window.isUnacknowledged(seqNum);
+    }
+
+    private void recordTimeout(int seqNum) {
+        metrics.timeouts.incrementAndGet();
+
+        RetransmitTimeoutEvent event = new RetransmitTimeoutEvent();
+        if (event.shouldCommit()) {
+            event.session = fileTransporter.getSessionId();
+            event.seqNum = seqNum;
+            event.rto = rttEstimator.getRTO();
+            event.packetsInFlight = window.size();
+            event.commit();
+        }
+    }
+
+    // with pacing the packet only joins the queue of the transmitting thread, a packet queued
+    // already keeps its place
+    private void retransmit(int seqNum, packet unacknowledgedPacket) {
+        window.clearSendTime(seqNum);
+
+        if (pacer != null) {
+            synchronized (mux) {
+                pacedRetransmissions.add(seqNum);
+                mux.notifyAll();
+            }
+            return;
+        }
+
+        sendRetransmission(seqNum, unacknowledgedPacket);
+    }
+
+    // send the oldest queued retransmission unless it has been acknowledged meanwhile, called with mux held
+    private void sendQueuedRetransmission() {
+        Iterator<Integer> it = pacedRetransmissions.iterator();
+        Integer seqNum = it.next();
+        it.remove();
+
+        packet unacknowledgedPacket = window.get(seqNum.intValue());
+        if (unacknowledgedPacket != null)
+            sendRetransmission(seqNum.intValue(), unacknowledgedPacket);
+    }
+
+    private void sendRetransmission(int seqNum, packet unacknowledgedPacket) {
+        try {
+            fileTransporter.sendPacket(unacknowledgedPacket);
+            if (pacer != null)
+                pacer.onSent(unacknowledgedPacket.getEncodedLength(), System.nanoTime());
+
+            // recording packet number of sent packet
+            eventLog.record(EventLog.Retransmitted, seqNum);
+            metrics.packetsRetransmitted.incrementAndGet();
+
+        } catch (IOException ex) {
+            System.out.println("sender: retransmit: packet I/O error " + ex.getMessage());
+        }
+    }
 
-                    reschedule();
+    // measure RTT of the acknowledged packet unless it has been retransmitted,
+    // returns the sample in milliseconds or -1
+    private double sampleRTT(int acknowledgedSeqNum) {
+        long sendTime = window.getSendTime(acknowledgedSeqNum);
+
+        if (sendTime < 0)
+            return -1;
+
+        long rtt = System.nanoTime() - sendTime;
+        rttEstimator.addSample(rtt);
+        metrics.rttMicros.record(rtt / 1000);
+        return rtt / 1000000.0;
+    }
+
+    private CongestionControl createCongestionControl(String name) {
+        if (name.equals("fixed"))
+            return new FixedWindowControl(Math.min(fixedWindowSize, maxWindowSize));
+        if (name.equals("reno"))
+            return new RenoCongestionControl(maxWindowSize);
+        if (name.equals("vegas"))
+            return new VegasCongestionControl(maxWindowSize);
+
+        throw new RuntimeException("sender: Unknown congestion control " + name);
+    }
+
+    // number of packets allowed in flight
+    public int getWindowSize() {
+        return Math.min(congestionControl.getWindow() + recoveryWindowInflation, maxWindowSize);
+    }
+
+    // most recent RTT sample in milliseconds, -1 if none has been taken yet
+    public double getCurrentRTT() {
+        return rttEstimator.getLastRTT();
+    }
+
+    // smoothed RTT in milliseconds, -1 if none has been taken yet
+    public double getSmoothedRTT() {
+        return rttEstimator.getSmoothedRTT();
+    }
+
+    // current retransmission timeout in milliseconds
+    public long getCurrentRTO() {
+        return rttEstimator.getRTO();
+    }
+
+    // every ACK the receiver can still send lies in [nextSeqNum - SeqNumModulo, nextSeqNum):
+    // Go-Back-N ACKs at least base - 1, Selective Repeat at least base - SeqNumModulo / 2
+    private int getSeqNumFromPacketSeqNum(int packetSeqNum) {
+        // 32-bit sequence numbers are sent unreduced
+        if (wideSeqNum)
+            return packetSeqNum;
+
+        return unwrapSeqNum(packetSeqNum, window.getNextSeqNum(), SeqNumModulo);
+    }
+
+    // the sequence number in [nextSeqNum - modulo, nextSeqNum) that is packetSeqNum modulo modulo.
+    // modulo is a power of two, so this holds across the wrap of int sequence numbers as well.
+    static int unwrapSeqNum(int packetSeqNum, int nextSeqNum, int modulo) {
+        int lowerBound = nextSeqNum - modulo;
+
+        return lowerBound + ((packetSeqNum - lowerBound) & (modulo - 1));
+    }
+
+    private boolean shouldFinishMonitoring() {
+        synchronized (mux) {
+            return fileTransporter.getIsFinished() && window.isEmpty();
+        }
+    }
+
+    // retransmission timers of the engine in use, Go-Back-N uses the window timer and
+    // Selective Repeat one timer per packet
+    private interface RetransmitTimers {
+        void restartWindowTimer();
+        void stopWindowTimer();
+        void startPacketTimer(int seqNum);
+        void stopPacketTimer(int seqNum);
+        void shutdown();
+    }
+
+    // retransmission timers on a hashed timing wheel, advanced by the wheel's ticker thread in
+    // the threaded engine and by the event loop in the NIO engine. Packet timers are reused by
+    // sequence number: the window never holds two packets with the same index.
+    private class WheelRetransmitTimers implements RetransmitTimers {
+        private final int slotCount = 512;
+
+        private TimingWheel wheel;
+        private TimingWheel.Timeout windowTimeout;
+        private TimingWheel.Timeout[] packetTimeouts;   // created on first use
+        private TimingWheel.TimeoutHandler packetTimeoutHandler;
+
+        public WheelRetransmitTimers(long tickMillis) {
+            wheel = new TimingWheel(tickMillis, slotCount);
+
+            // Go-Back-N timeout: resend all unacknowledged packets and count down again
+            windowTimeout = new TimingWheel.Timeout(new TimingWheel.TimeoutHandler() {
+                public void onTimeout(int key) {
+                    retransmitWindow();
+                    restartWindowTimer();
+                }
+            });
+
+            // Selective Repeat timeout: resend the packet unless it has been acknowledged meanwhile
+            packetTimeoutHandler = new TimingWheel.TimeoutHandler() {
+                public void onTimeout(int seqNum) {
+                    if (retransmitPacket(seqNum))
+                        startPacketTimer(seqNum);
                 }
             };
 
-            schedule(unacknowledgedPacketsRetransmitTimerTask, countDownDelay);
+            int length = Integer.highestOneBit(maxWindowSize);
+            if (length < maxWindowSize)
+                length <<= 1;
+            packetTimeouts = new TimingWheel.Timeout[length];
+        }
+
+        public TimingWheel getWheel() {
+            return wheel;
         }
 
-        public void cancelTask() {
-            if (unacknowledgedPacketsRetransmitTimerTask != null
-                    && unacknowledgedPacketsRetransmitTimerTask.scheduledExecutionTime() >= 0)
-                unacknowledgedPacketsRetransmitTimerTask.cancel();
-            purge();
+        public void restartWindowTimer() {
+            wheel.schedule(windowTimeout, 0, rttEstimator.getRTO());
         }
+
+        public void stopWindowTimer() {
+            wheel.cancel(windowTimeout);
+        }
+
+        public void startPacketTimer(int seqNum) {
+            int index = seqNum & (packetTimeouts.length - 1);
+
+            // only the thread sending packets creates timeouts, the others find them created
+            if (packetTimeouts[index] == null)
+                packetTimeouts[index] = new TimingWheel.Timeout(packetTimeoutHandler);
+
+            wheel.schedule(packetTimeouts[index], seqNum, rttEstimator.getRTO());
+        }
+
+        public void stopPacketTimer(int seqNum) {
+            TimingWheel.Timeout timeout = packetTimeouts[seqNum & (packetTimeouts.length - 1)];
+
+            if (timeout != null)
+                wheel.cancel(timeout);
+        }
+
+        public void shutdown() {
+            wheel.shutdown();
+        }
+    }
+
+    // the byte range of the file as -io and -readahead ask for
+    private static PacketDataSource openDataSource(File file, long offset, long length, SenderOptions options) throws IOException {
+        PacketDataSource source = options.mappedFile ? new MappedDataSource(file, offset, length)
+                : new StreamDataSource(file, offset, length);
+
+        return (options.readAhead > 0)? new ReadAheadDataSource(source, options.readAhead) : source;
+    }
+
+    // -streams: split the file into byte ranges of whole packets, stream i sends its range to
+    // emulatorPort + i and receives ACKs on senderPort + i, all streams run in parallel
+    private static void startStreams(InetAddress emulatorAdd, int emulatorPort, int senderPort, File fileToBeTransferred,
+            SenderOptions options) throws IOException, InterruptedException {
+        final int streams = options.streams;
+        long fileLength = fileToBeTransferred.length();
+        int payloadSize = options.payloadSize;
+        long rangeLength = (fileLength / streams / payloadSize + 1) * payloadSize;
+
+        final sender[] senders = new sender[streams];
+        Thread[] threads = new Thread[streams];
+
+        for (int i = 0; i < streams; i++) {
+            long offset = Math.min(fileLength, i * rangeLength);
+            long length = Math.min(rangeLength, fileLength - offset);
+
+            PacketDataSource fileSource = openDataSource(fileToBeTransferred, offset, length, options);
+            FileTransmitter fileTransporter = new FileTransmitter(emulatorAdd, emulatorPort + i, fileSource);
+            fileTransporter.setSessionId(options.sessionId + i);
+            senders[i] = new sender(fileTransporter, senderPort + i, options, i);
+        }
+
+        long startTime = System.nanoTime();
+
+        for (int i = 0; i < streams; i++) {
+            final int stream = i;
+
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        senders[stream].start();
+                    } catch (Exception ex) {
+                        System.out.println("sender: stream " + stream + ": " + ex.getMessage());
+                    }
+                }
+            }, "sender stream " + i);
+            threads[i].start();
+        }
+
+        for (int i = 0; i < streams; i++)
+            threads[i].join();
+
+        double millis = (System.nanoTime() - startTime) / 1000000.0;
+
+        for (int i = 0; i < streams; i++)
+            senders[i].printStatistics();
+
+        System.out.println(String.format("sender: %d streams: %d bytes in %.0f ms (%.2f MB/s)",
+                streams, fileLength, millis, fileLength / 1000.0 / Math.max(millis, 1)));
     }
 
     public static void main(String [ ] args) {
@@ -239,7 +1074,8 @@ public class sender implements Runnable {
                        + "\t<host address of the network emulator>\n"
                        + "\t<UDP port number used by the emulator to receive data from the sender>\n"
                        + "\t<UDP port number used by the sender to receive ACKs from the emulator>\n"
-                       + "\t<name of the file to be transferred>";
+                       + "\t<name of the file to be transferred>\n\n"
+                       + SenderOptions.usage;
                throw new RuntimeException(str);
             }
 
@@ -248,6 +1084,8 @@ public class sender implements Runnable {
             int senderPort = Integer.parseInt(args[2]);
             File fileToBeTransferred = new File(args[3]);
 
+            SenderOptions options = SenderOptions.parse(args, 4);
+
             // throw exception if give file does not exist
             if (!fileToBeTransferred.exists()) {
                 String str = "sender: Given file does not exist";
@@ -260,10 +1098,17 @@ public class sender implements Runnable {
                 throw new RuntimeException(str);
             }
 
-            FileTransmitter fileTransporter = new FileTransmitter(emulatorAdd, emulatorPort, fileToBeTransferred);
-            sender fileSender = new sender(fileTransporter, senderPort);
-            fileSender.start();
-            
+            if (options.streams > 1) {
+                startStreams(emulatorAdd, emulatorPort, senderPort, fileToBeTransferred, options);
+            } else {
+                PacketDataSource fileSource = openDataSource(fileToBeTransferred, 0, fileToBeTransferred.length(), options);
+                FileTransmitter fileTransporter = new FileTransmitter(emulatorAdd, emulatorPort, fileSource);
+                fileTransporter.setSessionId(options.sessionId);
+                sender fileSender = new sender(fileTransporter, senderPort, options, -1);
+                fileSender.start();
+                fileSender.printStatistics();
+            }
+
         } catch (UnknownHostException ex) {
             System.out.println("sender: Can't resolve the host address of the network emulator: " + ex.getMessage());
         } catch (NumberFormatException ex) {
@@ -289,69 +1134,130 @@ public class sender implements Runnable {
 
 // FileTransmitter: create and send all the packet to the receiver
 class FileTransmitter {
-    private InetAddress emuAdd;         // host address of the network emulator
-    private int emuPort;                // UDP port number used by the emulator to receive data from the sender
-    private FileInputStream fileStream; // file to be transferred
+    private InetSocketAddress emuSocketAdd;     // network emulator: host address and UDP port used to receive data from the sender
+    private PacketDataSource fileSource;        // file to be transferred
+    private CompressingDataSource compression;  // wraps fileSource if compression was negotiated
+    private ReadAheadDataSource readAhead;      // the source itself with -readahead, else null
 
-    private DatagramSocket transmitterSocket;
+    // packets are encoded into one reused direct buffer and sent from it without copying
+    private DatagramChannel transmitterChannel;
+    private ByteBuffer sendBuffer = ByteBuffer.allocateDirect(packet.MaxPacketLength);
+
+    // packets are filled in the sender's window slots, their payload is payloadSize bytes for
+    // every data packet but the last
+    private int payloadSize = packet.DefaultDataLength;
 
     private boolean isFinished = false;
-    private final int fileBufferSize = 500 - 4;
-    private byte [] fileBuff = new byte [fileBufferSize];
+    private boolean wideSeqNum = false;     // packets carry 32-bit sequence numbers
+    private int sessionId = 0;              // carried by every packet, tells transfers apart at a ReceiverServer
+
+    public FileTransmitter (InetAddress emulatorAdd, int emulatorPort, PacketDataSource source) throws IOException {
+        emuSocketAdd = new InetSocketAddress(emulatorAdd, emulatorPort);
+
+        fileSource = source;
+        if (source instanceof ReadAheadDataSource)
+            readAhead = (ReadAheadDataSource) source;
+        transmitterChannel = DatagramChannel.open();
+    }
+
+    // send the given packet to the target, synchronized with readNextPacketFromFile so a
+    // retransmission never encodes a recycled packet while it is being refilled
+    public synchronized void sendPacket(packet p) throws IOException {
+        // parity packets are a little longer than data packets
+        if (p.getEncodedLength() > sendBuffer.capacity())
+            sendBuffer = ByteBuffer.allocateDirect(p.getEncodedLength());
+
+        sendBuffer.clear();
+        p.setSessionId(sessionId);
+        p.encode(sendBuffer);
+
+        // only header and payload are sent, the last data packet and EOT are short datagrams
+        sendBuffer.flip();
+        transmitterChannel.send(sendBuffer, emuSocketAdd);
+    }
+
+    public int getPayloadSize() {
+        return payloadSize;
+    }
 
-    public FileTransmitter (InetAddress emulatorAdd, int emulatorPort, File fileToBeTransferred) throws FileNotFoundException, SocketException {
-        emuAdd = emulatorAdd;
-        emuPort = emulatorPort;
+    // payload negotiated during setup, called before the first data packet is read
+    public synchronized void setPayloadSize(int size) {
+        payloadSize = size;
 
-        fileStream = new FileInputStream(fileToBeTransferred);
-        transmitterSocket = new DatagramSocket();
+        if (packet.HeaderLength + size > sendBuffer.capacity())
+            sendBuffer = ByteBuffer.allocateDirect(packet.HeaderLength + size);
     }
 
-    // send the given packet to the target
-    public void sendPacket(packet p) throws IOException {
-        // send packet as byte array field of java DatagramPacket
-        byte[] sendData = myGetUDPdata(p);
-        DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, emuAdd, emuPort);
+    // deflate the file from the first data packet on, called before it is read
+    public synchronized void enableCompression() {
+        if (compression == null)
+            fileSource = compression = new CompressingDataSource(fileSource);
+    }
 
-        transmitterSocket.send(sendPacket);
+    // resume behind bytes the receiver has already, called before the first data packet is read
+    public synchronized void skip(long bytes) throws IOException {
+        fileSource.skip(bytes);
     }
 
-    //***************** myGetUDPdata ************************
-    // Fix the size bug from packet.getUDPdata:
-    // in packet.getUDPdata():
-    // buffer.put(data.getBytes(),0,data.length());
-    // function doesn't put full string data into the UDP data
+    public CompressingDataSource getCompression() {
+        return compression;
+    }
+
+    public ReadAheadDataSource getReadAhead() {
+        return readAhead;
+    }
 
-    private byte[] myGetUDPdata(packet p) {
-        ByteBuffer buffer = ByteBuffer.allocate(512);
-        buffer.putInt(p.getType());
-        buffer.putInt(p.getSeqNum());
-        buffer.putInt(p.getData().length);
-        buffer.put(p.getData(),0,p.getData().length);
-        return buffer.array();
+    public void setSessionId(int session) {
+        sessionId = session;
+    }
+
+    public int getSessionId() {
+        return sessionId;
     }
-    // ******************************************************
 
     public void closeTransmitterSocket() {
-        transmitterSocket.close();
+        try {
+            transmitterChannel.close();
+        } catch (IOException ex) {
+            System.out.println("sender: FileTransmitter: could not close channel " + ex.getMessage());
+        }
     }
 
-    public packet readNextPacketFromFile (int nextSeqNum) throws IOException, Exception {
-        // read data to byte buffer
+    public void setWideSeqNum(boolean isWideSeqNum) {
+        wideSeqNum = isWideSeqNum;
+    }
 
-        int ret = fileStream.read(fileBuff);
+    // fill the given packet, with room for payloadSize bytes, with the next chunk of the file
+    public synchronized packet readNextPacketFromFile (packet pkt, int nextSeqNum) throws IOException, Exception {
+        // read data straight into the packet's payload
+        int ret = fileSource.read(pkt.getDataArray(), 0, payloadSize);
 
         // Last read just finishes reading the file
         if (ret == -1) {
             isFinished = true;
-            fileStream.close();
-            return packet.createEOT(nextSeqNum);
+            fileSource.close();
+            pkt.set(2, nextSeqNum, 0, wideSeqNum);
+            return pkt;
         }
 
-        return packet.createPacket(nextSeqNum, new String(fileBuff, 0, ret));
+        pkt.set(1, nextSeqNum, ret, wideSeqNum);
+        return pkt;
     }
 
     public boolean getIsFinished() {
         return isFinished;
     }
-}
\ No newline at end of file
+
+    // the byte range carried by this transmitter
+    public long getOffset() {
+        return fileSource.offset();
+    }
+
+    public long getLength() {
+        return fileSource.length();
+    }
+
+    public long getFileLength() {
+        return fileSource.fileLength();
+    }
+}